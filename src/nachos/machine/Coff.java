@@ -45,6 +45,7 @@ public class Coff {
 	if (coff != null) {
 	    this.entryPoint = coff.entryPoint;
 	    this.sections = coff.sections;
+	    this.identity = file.getName() + "/" + file.length();
 	}
 	else {
 	    byte[] headers = new byte[headerLength+aoutHeaderLength];
@@ -59,8 +60,10 @@ public class Coff {
 	    int magic = Lib.bytesToUnsignedShort(headers, 0);
 	    int numSections = Lib.bytesToUnsignedShort(headers, 2);
 	    int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
+	    int timeStamp = Lib.bytesToInt(headers, 4);
 	    int flags = Lib.bytesToUnsignedShort(headers, 18);
 	    entryPoint = Lib.bytesToInt(headers, headerLength+16);
+	    identity = file.getName() + "/" + file.length() + "/" + timeStamp;
 
 	    if (magic != 0x0162) {
 		Lib.debug(dbgCoff, "\tincorrect magic number");
@@ -127,6 +130,18 @@ public class Coff {
 	return entryPoint;
     }
 
+    /**
+     * Return a string that identifies the executable, made of its file name,
+     * length and link time stamp. Loaders of the same executable return equal
+     * strings, so the kernel can share the read-only pages of processes
+     * running the same program.
+     *
+     * @return	the identity of the executable.
+     */
+    public String getIdentity() {
+	return identity;
+    }
+
     /**
      * Close the executable file and release any resources allocated by this
      * loader.
@@ -143,6 +158,8 @@ public class Coff {
     protected int entryPoint;
     /** The sections in this COFF executable. */
     protected CoffSection sections[];
+    /** Identifies the executable; see <tt>getIdentity()</tt>. */
+    protected String identity;
 
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,7 +179,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -196,10 +195,56 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
-	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	if (initlen > 0) {
+	    byte[] buf = new byte[initlen];
+	    Lib.strictReadFile(file, faddr, buf, 0, initlen);
+	    processor.writeMemory(paddr, buf, 0, initlen);
+	}
+
+	processor.fillMemory(paddr+initlen, pageSize-initlen, (byte) 0);
+    }
+
+    /**
+     * Load a run of consecutive pages of this segment into physical memory,
+     * reading them from the executable with a single file access. Page
+     * <tt>spn+i</tt> is loaded into physical page <tt>ppns[i]</tt>.
+     *
+     * @param	spn	the page number of the first page to load.
+     * @param	ppns	the physical pages to load the run into.
+     * @param	count	the number of pages in the run.
+     */
+    public void loadPages(int spn, int[] ppns, int count) {
+	Lib.assertTrue(count>0 && spn>=0 && spn+count<=numPages);
+
+	// a section with no file must override loadPage()
+	if (file == null) {
+	    for (int i=0; i<count; i++)
+		loadPage(spn+i, ppns[i]);
+	    return;
+	}
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	int pageSize = Processor.pageSize;
+	Processor processor = Machine.processor();
+
+	// the bytes of the run that come from the file; the rest are zero
+	int initlen = initialized ? Math.min(count*pageSize, size-spn*pageSize) : 0;
+
+	byte[] buf = null;
+	if (initlen > 0) {
+	    buf = new byte[initlen];
+	    Lib.strictReadFile(file, contentOffset + spn*pageSize, buf, 0, initlen);
+	}
+
+	for (int i=0; i<count; i++) {
+	    Lib.assertTrue(ppns[i]>=0 && ppns[i]<processor.getNumPhysPages());
+
+	    int paddr = ppns[i]*pageSize;
+	    int len = Math.max(0, Math.min(pageSize, initlen - i*pageSize));
+
+	    if (len > 0)
+		processor.writeMemory(paddr, buf, i*pageSize, len);
+	    processor.fillMemory(paddr+len, pageSize-len, (byte) 0);
+	}
     }
 
     /** The COFF object to which this section belongs. */
@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,10 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
+	numPending = 0;
+	nextDue = Long.MAX_VALUE;
+	debugInterrupts = Lib.test(dbgInt);
     }
 
     /**
@@ -120,32 +121,124 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance simulated time straight to the next pending interrupt and
+     * invoke the handlers that are then due. The kernel calls this, with
+     * interrupts disabled, when no thread is ready to run: nothing can
+     * change until an interrupt occurs, so there is no point in advancing
+     * the clock one tick at a time. The skipped time is counted as idle
+     * time. Does nothing if no interrupt is pending.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+	if (nextDue > stats.totalTicks) {
+	    stats.idleTicks += nextDue - stats.totalTicks;
+	    stats.totalTicks = nextDue;
+	}
+
+	if (debugInterrupts)
+	    System.out.println("== Idle until " + stats.totalTicks + " ==");
+
+	checkIfDue();
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (debugInterrupts)
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	PendingInterrupt toOccur = free;
+	if (toOccur != null)
+	    free = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, numPending*2);
+
+	// sift the new interrupt up from the bottom of the heap
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (pending[parent].compareTo(toOccur) <= 0)
+		break;
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
 
-	pending.add(toOccur);
+	nextDue = pending[0].time;
+    }
+
+    /**
+     * Remove the earliest pending interrupt from the heap. The caller must
+     * return it to the free list once it no longer needs its fields.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    // sift the last interrupt down from the top of the heap
+	    int i = 0;
+	    while (true) {
+		int child = 2*i+1;
+		if (child >= numPending)
+		    break;
+		if (child+1 < numPending &&
+		    pending[child+1].compareTo(pending[child]) < 0)
+		    child++;
+		if (last.compareTo(pending[child]) <= 0)
+		    break;
+		pending[i] = pending[child];
+		i = child;
+	    }
+	    pending[i] = last;
+	}
+
+	nextDue = (numPending > 0) ? pending[0].time : Long.MAX_VALUE;
+	return first;
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int count) {
 	Stats stats = privilege.stats;
 
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += Stats.KernelTick * count;
+	    stats.totalTicks += Stats.KernelTick * count;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += Stats.UserTick * count;
+	    stats.totalTicks += Stats.UserTick * count;
 	}
 
-	if (Lib.test(dbgInt))
+	// nothing is due yet: the common case, decided by one comparison
+	if (stats.totalTicks < nextDue && !debugInterrupts) {
+	    enabled = true;
+	    return;
+	}
+
+	if (debugInterrupts)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
@@ -153,35 +246,44 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long timeUntilNextInterrupt() {
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	return nextDue - privilege.stats.totalTicks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (debugInterrupts)
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextDue <= time) {
+	    PendingInterrupt next = removeFirst();
+	    String type = next.type;
+	    Runnable handler = next.handler;
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // the handler may schedule another interrupt using this one
+	    next.handler = null;
+	    next.nextFree = free;
+	    free = next;
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +294,10 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+	
+	for (PendingInterrupt toOccur : sorted) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,13 +305,7 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
+    private static class PendingInterrupt implements Comparable {
 
 	public int compareTo(Object o) {
 	    PendingInterrupt toOccur = (PendingInterrupt) o;
@@ -230,6 +328,8 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	/** The next interrupt on the free list. */
+	PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +337,14 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** Pending interrupts, as a binary min-heap ordered by time and id. */
+    private PendingInterrupt[] pending;
+    private int numPending;
+    /** The time of the earliest pending interrupt. */
+    private long nextDue;
+    /** Interrupts that have been handled, kept for reuse. */
+    private PendingInterrupt free = null;
+    private boolean debugInterrupts;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +356,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public long timeUntilNextInterrupt() {
+	    return Interrupt.this.timeUntilNextInterrupt();
+	}
     }
 }
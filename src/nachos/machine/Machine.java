@@ -57,6 +57,7 @@ public final class Machine {
 
 	TCB.givePrivilege(privilege);
 	privilege.stats = stats;
+	Trace.initialize(privilege);
 
 	securityManager.enable();
 	createDevices();
@@ -94,6 +95,7 @@ public final class Machine {
 	if (e instanceof ThreadDeath)
 	    throw (ThreadDeath) e;
 	
+	Trace.dumpIfQuiet();
 	e.printStackTrace();
 	terminate();
     }
@@ -358,6 +360,15 @@ public final class Machine {
      */
     public static AutoGrader autoGrader() { return autoGrader; }
 
+    /**
+     * Return the machine statistics. Kernels may use this to record events
+     * that the hardware cannot see, such as page evictions; the time
+     * counters must only be changed by the machine itself.
+     *
+     * @return	the machine statistics.
+     */
+    public static Stats stats() { return stats; }
+
     private static Interrupt interrupt = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
@@ -4,6 +4,14 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,12 +53,46 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	flushMicroTLB();
+
+	String memoryFile = Config.getString("Processor.memoryFile", null);
+	if (memoryFile != null)
+	    memoryBuffer = mapMemoryFile(memoryFile);
+	else if (Config.getBoolean("Processor.offHeapMemory", false))
+	    memoryBuffer = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+	else
+	    mainMemory = new byte[pageSize * numPhysPages];
+
+	if (memoryBuffer != null)
+	    memoryBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	decodedPages = new Decoded[numPhysPages][];
+	blockPages = new Block[numPhysPages][];
+	blockHeat = new int[numPhysPages][];
+
+	String engine = Config.getString("Processor.engine", "interpreter");
+	Lib.assertTrue(engine.equals("interpreter") || engine.equals("blocks"),
+		       "Processor.engine must be interpreter or blocks");
+	usingBlocks = engine.equals("blocks");
+	compileThreshold = Config.getInteger("Processor.compileThreshold", 16);
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    Lib.assertTrue(tlbSize >= 2 && tlbSize <= maxTLBSize,
+			   "Processor.tlbSize out of range");
+	    tlbAssociativity =
+		Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    // an instruction fetch and a load or store may need two entries
+	    // in the same set at once, so each set must be able to hold both
+	    Lib.assertTrue(tlbAssociativity >= 2 &&
+			   tlbSize % tlbAssociativity == 0,
+			   "Processor.tlbAssociativity must be at least 2 "
+			   + "and divide Processor.tlbSize");
+	    numTLBSets = tlbSize / tlbAssociativity;
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+	    tlbLastUse = new long[tlbSize];
 	}
 	else {
 	    translations = null;
@@ -91,6 +133,11 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	// disassembly needs to see every instruction go through the interpreter
+	if (usingBlocks && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+	    runBlocks();
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
@@ -175,6 +222,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushMicroTLB();
     }
 
     /**
@@ -188,6 +236,82 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the current address space ID. Only TLB entries whose
+     * <tt>asid</tt> field equals this value are used to translate addresses.
+     *
+     * @return	the current ASID.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
+    /**
+     * Set the current address space ID. The TLB is not flushed; entries
+     * tagged with other ASIDs remain in the TLB but are ignored until their
+     * ASID becomes current again.
+     *
+     * @param	asid	the new ASID, between 0 and
+     *			<tt>numASIDs - 1</tt>.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	this.asid = asid;
+	flushMicroTLB();
+    }
+
+    /**
+     * Return the associativity of this processor's TLB, that is, the number
+     * of entries in each set. A fully associative TLB has a single set
+     * containing every entry.
+     *
+     * @return	the number of entries in each TLB set.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the index of the first TLB entry in the set that a virtual page
+     * of the current address space maps to. A translation for <i>vpn</i>
+     * will only be found if it is stored in one of the
+     * <tt>getTLBAssociativity()</tt> entries starting at this index.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the first entry in the set for <i>vpn</i>.
+     */
+    public int getTLBSetStart(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return tlbSetStart(vpn);
+    }
+
+    private int tlbSetStart(int vpn) {
+	return ((vpn ^ asid) % numTLBSets) * tlbAssociativity;
+    }
+
+    /**
+     * Return when the specified TLB entry was last used to translate an
+     * address. The result is only meaningful relative to the value returned
+     * for other entries: an entry that was used more recently has a larger
+     * value.
+     *
+     * @param	number	the index into the TLB.
+     * @return	the time the entry was last used.
+     */
+    public long getTLBLastUse(int number) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+
+	return tlbLastUse[number];
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,7 +329,9 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
+     * A valid entry is only used while its ASID is current, and only if it
+     * is stored in the set that its vpn maps to under that ASID (see
+     * <tt>getTLBSetStart()</tt>). Within a set, the location of an entry
      * does not affect anything.
      *
      * @param	number	the index into the TLB.
@@ -215,7 +341,16 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	TranslationEntry old = translations[number];
+	if (entry.valid &&
+	    !(old.valid && old.vpn == entry.vpn && old.asid == entry.asid)) {
+	    if (old.valid)
+		privilege.stats.numTLBEvictions++;
+	    tlbLastUse[number] = ++tlbReferences;
+	}
+
 	translations[number] = new TranslationEntry(entry);
+	flushMicroTLB();
     }
 
     /**
@@ -232,12 +367,219 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Only available when physical memory is on the Java heap (see
+     * <tt>isMemoryOffHeap()</tt>). Kernels should prefer
+     * <tt>readMemory()</tt>, <tt>writeMemory()</tt> and
+     * <tt>fillMemory()</tt>, which work with either kind of memory.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null);
+	
 	return mainMemory;
     }
 
+    /**
+     * Test whether physical memory is held outside the Java heap, either in a
+     * direct buffer (<tt>Processor.offHeapMemory</tt>) or mapped onto a file
+     * (<tt>Processor.memoryFile</tt>).
+     *
+     * @return	<tt>true</tt> if physical memory is off-heap.
+     */
+    public boolean isMemoryOffHeap() {
+	return memoryBuffer != null;
+    }
+
+    /**
+     * Copy bytes out of physical memory.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array in which to store the bytes.
+     * @param	offset	the offset in <i>data</i> at which to store them.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+
+	if (memoryBuffer == null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else {
+	    memoryBuffer.position(paddr);
+	    memoryBuffer.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes into physical memory. Any pre-decoded instructions cached
+     * for the pages written are discarded.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the bytes.
+     * @param	offset	the offset in <i>data</i> of the first byte.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+
+	if (memoryBuffer == null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else {
+	    memoryBuffer.position(paddr);
+	    memoryBuffer.put(data, offset, length);
+	}
+
+	invalidateDecodedRange(paddr, length);
+    }
+
+    /**
+     * Set a range of physical memory to a single value. Any pre-decoded
+     * instructions cached for the pages written are discarded.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	length	the number of bytes to set.
+     * @param	value	the value to store in each byte.
+     */
+    public void fillMemory(int paddr, int length, byte value) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+
+	if (memoryBuffer == null) {
+	    Arrays.fill(mainMemory, paddr, paddr+length, value);
+	}
+	else {
+	    for (int i=paddr; i<paddr+length; i++)
+		memoryBuffer.put(i, value);
+	}
+
+	invalidateDecodedRange(paddr, length);
+    }
+
+    /**
+     * Copy bytes from one place in physical memory to another. The ranges
+     * must not overlap. Any pre-decoded instructions cached for the pages
+     * written are discarded.
+     *
+     * @param	srcPaddr	the first physical address to read.
+     * @param	dstPaddr	the first physical address to write.
+     * @param	length		the number of bytes to copy.
+     */
+    public void copyMemory(int srcPaddr, int dstPaddr, int length) {
+	Lib.assertTrue(srcPaddr >= 0 && dstPaddr >= 0 && length >= 0 &&
+		       srcPaddr+length <= pageSize*numPhysPages &&
+		       dstPaddr+length <= pageSize*numPhysPages);
+
+	if (memoryBuffer == null) {
+	    System.arraycopy(mainMemory, srcPaddr, mainMemory, dstPaddr, length);
+	}
+	else {
+	    byte[] data = new byte[length];
+	    memoryBuffer.position(srcPaddr);
+	    memoryBuffer.get(data);
+	    memoryBuffer.position(dstPaddr);
+	    memoryBuffer.put(data);
+	}
+
+	invalidateDecodedRange(dstPaddr, length);
+    }
+
+    private void invalidateDecodedRange(int paddr, int length) {
+	if (length == 0)
+	    return;
+	
+	for (int ppn=paddr/pageSize; ppn<=(paddr+length-1)/pageSize; ppn++)
+	    invalidateDecodedPage(ppn);
+    }
+
+    /**
+     * Map physical memory onto a file, so that it can be saved as a snapshot
+     * or shared with a swap file. The file is created or extended as needed.
+     */
+    private ByteBuffer mapMemoryFile(final String name) {
+	final ByteBuffer[] result = new ByteBuffer[1];
+	
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			RandomAccessFile file =
+			    new RandomAccessFile(new File(name), "rw");
+			result[0] =
+			    file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						  0, pageSize*numPhysPages);
+			file.close();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	Lib.assertTrue(result[0] != null,
+		       "could not map physical memory onto " + name);
+	return result[0];
+    }
+
+    /**
+     * Load a value from physical memory. Bytes and halfwords are sign
+     * extended.
+     */
+    private int loadPhys(int paddr, int size) {
+	if (memoryBuffer == null)
+	    return Lib.bytesToInt(mainMemory, paddr, size);
+
+	switch (size) {
+	case 1:
+	    return memoryBuffer.get(paddr);
+	case 2:
+	    return memoryBuffer.getShort(paddr);
+	default:
+	    return memoryBuffer.getInt(paddr);
+	}
+    }
+
+    /**
+     * Store a value into physical memory.
+     */
+    private void storePhys(int paddr, int size, int value) {
+	if (memoryBuffer == null) {
+	    Lib.bytesFromInt(mainMemory, paddr, size, value);
+	    return;
+	}
+
+	switch (size) {
+	case 1:
+	    memoryBuffer.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    memoryBuffer.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memoryBuffer.putInt(paddr, value);
+	    break;
+	}
+    }
+
+    /**
+     * Discard any pre-decoded instructions cached for the specified physical
+     * page. The processor does this itself for user stores and for
+     * <tt>writeMemory()</tt> and <tt>fillMemory()</tt>, but a kernel that
+     * writes into the main memory array directly must call this afterwards,
+     * or stale instructions may be executed from the page.
+     *
+     * @param	ppn	the physical page whose contents changed.
+     */
+    public void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	blockPages[ppn] = null;
+	blockHeat[ppn] = null;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -294,7 +636,28 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	// fast path: an aligned access to a page already in the micro-TLB
+	if (!debugProcessor && (vaddr & (size-1)) == 0) {
+	    int vpn = pageFromAddress(vaddr);
+	    int slot = vpn & (microTLBSize-1);
+
+	    if (microVPNs[slot] == vpn && !(writing && microReadOnly[slot])) {
+		TranslationEntry entry = microEntries[slot];
+		entry.used = true;
+		if (writing)
+		    entry.dirty = true;
+
+		int number = microTLBNumbers[slot];
+		if (number >= 0) {
+		    privilege.stats.numTLBHits++;
+		    tlbLastUse[number] = ++tlbReferences;
+		}
+
+		return microPPNs[slot]*pageSize + offsetFromAddress(vaddr);
+	    }
+	}
+
+	if (debugProcessor)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -309,6 +672,7 @@ public final class Processor {
 	int offset = offsetFromAddress(vaddr);
 
 	TranslationEntry entry = null;
+	int number = -1;
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
@@ -322,11 +686,14 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB set for a matching vpn and ASID
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+	    int first = tlbSetStart(vpn);
+	    for (int i=first; i<first+tlbAssociativity; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn &&
+		    translations[i].asid == asid) {
 		    entry = translations[i];
+		    number = i;
 		    break;
 		}
 	    }
@@ -355,13 +722,39 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
+	if (usingTLB) {
+	    privilege.stats.numTLBHits++;
+	    tlbLastUse[number] = ++tlbReferences;
+	}
+
+	// remember the translation for next time
+	int slot = vpn & (microTLBSize-1);
+	microVPNs[slot] = vpn;
+	microPPNs[slot] = ppn;
+	microReadOnly[slot] = entry.readOnly;
+	microEntries[slot] = entry;
+	microTLBNumbers[slot] = number;
+
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Forget every translation cached in the micro-TLB. Called whenever the
+     * TLB or page table may have changed: when a TLB entry is written, when
+     * the page table is replaced, and whenever kernel code runs on an
+     * interrupt or exception.
+     */
+    private void flushMicroTLB() {
+	for (int i=0; i<microTLBSize; i++) {
+	    microVPNs[i] = -1;
+	    microEntries[i] = null;
+	}
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -372,16 +765,15 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = loadPhys(translate(vaddr, size, false), size);
 
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +791,21 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+
+	// stores into a page we have executed from invalidate its decodings
+	int ppn = paddr/pageSize;
+	if (decodedPages[ppn] != null || blockPages[ppn] != null)
+	    invalidateDecodedPage(ppn);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	storePhys(paddr, size, value);
     }
 
     /**
@@ -436,6 +834,170 @@ public final class Processor {
 	loadMask = nextLoadMask;
     }
 
+    /**
+     * Run the <tt>blocks</tt> engine. Never returns.
+     *
+     * <p>
+     * Execution is tiered. Code starts out interpreted one instruction at a
+     * time from the decoded-instruction cache, while a per-address counter
+     * records how often each address is dispatched to. Once an address has
+     * been reached <tt>Processor.compileThreshold</tt> times, the block
+     * starting there is compiled into pre-bound operations. A compiled block
+     * that exits to another compiled block on the same page is chained
+     * straight into it without translating the PC again, since no kernel
+     * code can run until the chain ends.
+     *
+     * <p>
+     * Instead of ticking the clock after every instruction, a chain runs
+     * only as far as the next pending interrupt allows, and then all of its
+     * ticks are charged at once. An exception part way through is charged
+     * exactly as the interpreter would: one tick per completed instruction
+     * before the handler runs, and one more after it.
+     */
+    private void runBlocks() {
+	while (true) {
+	    int executed = 0;
+
+	    try {
+		int vaddr = registers[regPC];
+		int paddr = translate(vaddr, 4, false);
+		int ppn = paddr/pageSize;
+		int vpn = pageFromAddress(vaddr);
+
+		Block[] page = blockPages[ppn];
+		if (page == null) {
+		    page = new Block[pageSize/4];
+		    blockPages[ppn] = page;
+		    blockHeat[ppn] = new int[pageSize/4];
+		}
+
+		Block block = page[(paddr%pageSize)/4];
+		if (block == null) {
+		    // cold code is interpreted until it has been reached often
+		    if (++blockHeat[ppn][(paddr%pageSize)/4] < compileThreshold) {
+			blockInterpreter.run(decodedAt(paddr));
+			executed = 1;
+			privilege.interrupt.tick(false);
+			continue;
+		    }
+
+		    block = new Block(paddr);
+		    page[(paddr%pageSize)/4] = block;
+		}
+
+		// an interrupt due after instruction n must still see n ticks
+		long due = privilege.interrupt.timeUntilNextInterrupt();
+		int limit = maxChainLength;
+		if (due < (long) limit * Stats.UserTick)
+		    limit = (int) ((due + Stats.UserTick - 1) / Stats.UserTick);
+
+		while (true) {
+		    // stop early if we branch away, or if a store rewrites code
+		    for (int i=0; i<block.ops.length && executed<limit &&
+			     registers[regPC] == vaddr &&
+			     blockPages[ppn] == page; i++) {
+			block.ops[i].run();
+			executed++;
+			vaddr += 4;
+		    }
+
+		    // chain into the next block if it is compiled and on this page
+		    vaddr = registers[regPC];
+		    if (executed == limit || blockPages[ppn] != page ||
+			(vaddr & 0x3) != 0 || pageFromAddress(vaddr) != vpn)
+			break;
+
+		    block = page[offsetFromAddress(vaddr)/4];
+		    if (block == null)
+			break;
+		}
+	    }
+	    catch (MipsException e) {
+		if (executed > 0)
+		    privilege.interrupt.tick(false, executed);
+
+		e.handle();
+
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    Lib.assertTrue(executed > 0);
+	    privilege.interrupt.tick(false, executed);
+	}
+    }
+
+    /**
+     * Return the decoding of the instruction at the specified physical
+     * address, decoding it and caching the result if necessary.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private Decoded decodedAt(int paddr) {
+	Decoded[] page = decodedPages[paddr/pageSize];
+	if (page == null) {
+	    page = new Decoded[pageSize/4];
+	    decodedPages[paddr/pageSize] = page;
+	}
+
+	Decoded decoded = page[(paddr%pageSize)/4];
+	if (decoded == null) {
+	    decoded = new Decoded(loadPhys(paddr, 4));
+	    page[(paddr%pageSize)/4] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Retire an instruction that is not a load or a branch: complete the
+     * delayed load in progress, write the destination register, and advance
+     * the PC.
+     *
+     * @param	dstReg	the destination register, or 0 for none.
+     * @param	value	the value to write into <i>dstReg</i>.
+     */
+    private void retire(int dstReg, int value) {
+	finishLoad();
+
+	if (dstReg != 0)
+	    registers[dstReg] = value;
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * Retire a load instruction, scheduling its delayed load.
+     *
+     * @param	dstReg	the target register of the load.
+     * @param	value	the value being loaded.
+     */
+    private void retireLoad(int dstReg, int value) {
+	delayedLoad(dstReg, value, 0xFFFFFFFF);
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * Retire a branch or jump instruction.
+     *
+     * @param	taken	<tt>true</tt> if the branch is taken.
+     * @param	target	the branch target.
+     * @param	linkReg	the register to receive the return address, or 0 for
+     *			none.
+     */
+    private void retireBranch(boolean taken, int target, int linkReg) {
+	int nextPC = registers[regNextPC]+4;
+
+	finishLoad();
+
+	if (linkReg != 0)
+	    registers[linkReg] = nextPC;
+
+	advancePC(taken ? target : nextPC);
+    }
+
     /**
      * Advance the PC to the next instruction.
      *
@@ -492,6 +1054,9 @@ public final class Processor {
 	"illegal inst "
     };
     
+    /** The number of distinct address space IDs the TLB can tag. */
+    public static final int numASIDs = 64;
+
     /** Index of return value register 0. */
     public static final int regV0 = 2;
     /** Index of return value register 1. */
@@ -541,6 +1106,18 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of entries in each TLB set. */
+    private int tlbAssociativity;
+    /** Number of sets in the TLB. */
+    private int numTLBSets;
+    /** The time each TLB entry was last used, in TLB references. */
+    private long[] tlbLastUse;
+    /** The number of TLB references so far. */
+    private long tlbReferences = 0;
+    /** The current address space ID. */
+    private int asid = 0;
+    /** The largest TLB that can be configured. */
+    private static final int maxTLBSize = 256;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -555,6 +1132,41 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /** Physical memory, if it is held off the Java heap. */
+    private ByteBuffer memoryBuffer = null;
+
+    /** Number of entries in the direct-mapped micro-TLB. */
+    private static final int microTLBSize = 64;
+    /**
+     * The micro-TLB: a direct-mapped cache, indexed by the low bits of the
+     * vpn, of translations that passed every check in <tt>translate()</tt>.
+     * It sits in front of both the TLB and the page table.
+     */
+    private int[] microVPNs = new int[microTLBSize];
+    private int[] microPPNs = new int[microTLBSize];
+    private boolean[] microReadOnly = new boolean[microTLBSize];
+    private TranslationEntry[] microEntries =
+	new TranslationEntry[microTLBSize];
+    private int[] microTLBNumbers = new int[microTLBSize];
+    /** <tt>true</tt> if processor debugging output is enabled. */
+    private boolean debugProcessor = Lib.test(dbgProcessor);
+
+    /** Pre-decoded instructions, indexed by physical page and word offset. */
+    private Decoded[][] decodedPages;
+    /** Compiled blocks, indexed by physical page and starting word offset. */
+    private Block[][] blockPages;
+    /** How often each not yet compiled address has been dispatched to. */
+    private int[][] blockHeat;
+    /** Dispatches to an address before the block there is compiled. */
+    private int compileThreshold;
+    /** <tt>true</tt> if running user code with the <tt>blocks</tt> engine. */
+    private boolean usingBlocks;
+    /** Interpreter used by blocks for instructions without a compiled op. */
+    private Instruction blockInterpreter = new Instruction();
+    /** The longest block the <tt>blocks</tt> engine will compile. */
+    private static final int maxBlockLength = 32;
+    /** The most instructions run by a chain of blocks between ticks. */
+    private static final int maxChainLength = 1024;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,6 +1178,7 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    flushMicroTLB();
 	}
     }
 
@@ -601,6 +1214,9 @@ public final class Processor {
 		return;
 	    
 	    exceptionHandler.run();
+
+	    // the kernel may have changed page table entries in place
+	    flushMicroTLB();
 	}
 
 	private boolean hasBadVAddr = false;
@@ -616,6 +1232,13 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	public void run(Decoded decoded) throws MipsException {
+	    this.decoded = decoded;
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +1249,45 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    // look for a decoding of this word cached by an earlier fetch
+	    decoded = decodedAt(translate(registers[regPC], 4, false));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1642,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1654,297 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A straight-line run of instructions compiled into pre-bound operations
+     * for the <tt>blocks</tt> engine. A block starts at a physical address and
+     * extends to the delay slot of the first branch or jump, to the first
+     * instruction that always traps, or to the end of the page.
+     */
+    private class Block {
+	Block(int paddr) {
+	    Op[] ops = new Op[maxBlockLength];
+	    int length = 0;
+	    boolean inDelaySlot = false;
+
+	    do {
+		Decoded d = new Decoded(loadPhys(paddr, 4));
+		ops[length++] = compile(d);
+		paddr += 4;
+
+		if (inDelaySlot || d.operation == Mips.SYSCALL ||
+		    d.operation == Mips.UNIMPL || d.operation == Mips.INVALID)
+		    break;
+
+		inDelaySlot = Lib.test(Mips.BRANCH, d.flags);
+	    } while (length < maxBlockLength && (paddr%pageSize) != 0);
+
+	    this.ops = new Op[length];
+	    System.arraycopy(ops, 0, this.ops, 0, length);
+	}
+
+	final Op[] ops;
+    }
+
+    /** A single instruction bound to its operands, ready to execute. */
+    private abstract class Op {
+	abstract void run() throws MipsException;
+    }
+
+    /**
+     * Compile a decoded instruction into an operation. Instructions that can
+     * overflow, and the less common ones, are simply handed back to the
+     * interpreter.
+     *
+     * @param	d	the decoded instruction.
+     * @return	an operation that has the same effect as interpreting
+     *		<i>d</i>.
+     */
+    private Op compile(final Decoded d) {
+	final int rs = d.rs, rt = d.rt, imm = d.imm, sh = d.sh;
+	final int dstReg = d.dstReg;
+	final boolean src2imm = Lib.test(Mips.SRC2IMM, d.flags);
+	final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+
+	if (Lib.test(Mips.OVERFLOW, d.flags))
+	    return interpreted(d);
+
+	switch (d.operation) {
+	case Mips.ADD:
+	    if (src2imm)
+		return new Op() {
+		    void run() { retire(dstReg, registers[rs] + imm); }
+		};
+	    return new Op() {
+		void run() { retire(dstReg, registers[rs] + registers[rt]); }
+	    };
+	case Mips.SUB:
+	    return new Op() {
+		void run() { retire(dstReg, registers[rs] - registers[rt]); }
+	    };
+	case Mips.AND:
+	    if (src2imm)
+		return new Op() {
+		    void run() { retire(dstReg, registers[rs] & imm); }
+		};
+	    return new Op() {
+		void run() { retire(dstReg, registers[rs] & registers[rt]); }
+	    };
+	case Mips.OR:
+	    if (src2imm)
+		return new Op() {
+		    void run() { retire(dstReg, registers[rs] | imm); }
+		};
+	    return new Op() {
+		void run() { retire(dstReg, registers[rs] | registers[rt]); }
+	    };
+	case Mips.XOR:
+	    if (src2imm)
+		return new Op() {
+		    void run() { retire(dstReg, registers[rs] ^ imm); }
+		};
+	    return new Op() {
+		void run() { retire(dstReg, registers[rs] ^ registers[rt]); }
+	    };
+	case Mips.NOR:
+	    return new Op() {
+		void run() { retire(dstReg, ~(registers[rs] | registers[rt])); }
+	    };
+	case Mips.LUI:
+	    return new Op() {
+		void run() { retire(dstReg, imm << 16); }
+	    };
+	case Mips.SLT:
+	    // same widening as the interpreter's src1 and src2
+	    return new Op() {
+		void run() {
+		    long src1 = registers[rs];
+		    long src2 = src2imm ? imm : registers[rt];
+		    if (unsigned) {
+			src1 &= 0xFFFFFFFFL;
+			src2 &= 0xFFFFFFFFL;
+		    }
+		    retire(dstReg, (src1<src2) ? 1 : 0);
+		}
+	    };
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	    final boolean shiftImm = Lib.test(Mips.SRC1SH, d.flags);
+	    final int operation = d.operation;
+	    return new Op() {
+		void run() {
+		    int amount = (shiftImm ? sh : registers[rs]) & 0x1F;
+		    long src2 = registers[rt];
+		    long dst;
+		    if (operation == Mips.SLL)
+			dst = src2 << amount;
+		    else if (operation == Mips.SRA)
+			dst = src2 >> amount;
+		    else
+			dst = src2 >>> amount;
+		    retire(dstReg, (int) dst);
+		}
+	    };
+	case Mips.LOAD:
+	    final int size = d.size;
+	    return new Op() {
+		void run() throws MipsException {
+		    int value = readMem(registers[rs] + imm, size);
+		    if (!unsigned)
+			value = Lib.extend(value, 0, size*8);
+		    retireLoad(dstReg, value);
+		}
+	    };
+	case Mips.STORE:
+	    final int storeSize = d.size;
+	    return new Op() {
+		void run() throws MipsException {
+		    writeMem(registers[rs] + imm, storeSize, registers[rt]);
+		    retire(0, 0);
+		}
+	    };
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BLEZ:
+	case Mips.BGTZ:
+	case Mips.BLTZ:
+	case Mips.BGEZ:
+	case Mips.JUMP:
+	    return compileBranch(d);
+	default:
+	    return interpreted(d);
+	}
+    }
+
+    private Op compileBranch(final Decoded d) {
+	final int rs = d.rs, rt = d.rt, operation = d.operation;
+	final int format = d.format, branchOffset = d.branchOffset;
+	final int jumpTarget = d.target<<2;
+	final int linkReg =
+	    Lib.test(Mips.LINK, d.flags) && d.dstReg > 0 ? d.dstReg : 0;
+
+	return new Op() {
+	    void run() {
+		int src1 = registers[rs];
+		int target;
+		if (format == Mips.RFMT)
+		    target = src1;
+		else if (format == Mips.IFMT)
+		    target = registers[regNextPC] + branchOffset;
+		else
+		    target = (registers[regNextPC]&0xF0000000) | jumpTarget;
+
+		boolean taken;
+		switch (operation) {
+		case Mips.BEQ:
+		    taken = (src1 == registers[rt]);
+		    break;
+		case Mips.BNE:
+		    taken = (src1 != registers[rt]);
+		    break;
+		case Mips.BLEZ:
+		    taken = (src1 <= 0);
+		    break;
+		case Mips.BGTZ:
+		    taken = (src1 > 0);
+		    break;
+		case Mips.BLTZ:
+		    taken = (src1 < 0);
+		    break;
+		case Mips.BGEZ:
+		    taken = (src1 >= 0);
+		    break;
+		default:
+		    taken = true;
+		    break;
+		}
+
+		retireBranch(taken, target, linkReg);
+	    }
+	};
+    }
+
+    private Op interpreted(final Decoded d) {
+	return new Op() {
+	    void run() throws MipsException {
+		blockInterpreter.run(d);
+	    }
+	};
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word itself, and so can be cached and reused every time the word is
+     * executed.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    int imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets always use the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+
+	    this.imm = imm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
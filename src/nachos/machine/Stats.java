@@ -20,13 +20,52 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + ", idle " + idleTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+			   + ", TLB misses " + numTLBMisses
+			   + ", evictions " + numEvictions
+			   + " (dirty " + numDirtyEvictions
+			   + ", background " + numBackgroundEvictions + ")"
+			   + ", refaults " + numRefaults);
+	if (numPrefetches != 0 || numFaultAround != 0)
+	    System.out.println("Readahead: pages " + numPrefetches
+			       + ", hits " + numPrefetchHits
+			       + ", fault-around " + numFaultAround);
+	if (numSwapCacheStores != 0 || numZeroPageStores != 0)
+	    System.out.println("Swap cache: stores " + numSwapCacheStores
+			       + ", zero pages " + numZeroPageStores
+			       + ", hits " + numSwapCacheHits
+			       + ", spills " + numSwapCacheSpills);
+	if (numZeroPageMaps != 0 || numFramesPrezeroed != 0)
+	    System.out.println("Zero page: mapped " + numZeroPageMaps
+			       + ", copied on write " + numZeroPageCopies
+			       + ", frames pre-zeroed " + numFramesPrezeroed);
+	if (numSharedTextLoads != 0)
+	    System.out.println("Shared text: loads " + numSharedTextLoads
+			       + ", shared " + numSharedTextHits);
+	if (numForkSharedPages != 0 || numCopyOnWriteCopies != 0)
+	    System.out.println("Fork: pages shared " + numForkSharedPages
+			       + ", copied on write " + numCopyOnWriteCopies);
+	if (numMappedPageReads != 0 || numMappedPageWrites != 0)
+	    System.out.println("Mapped files: pages read " + numMappedPageReads
+			       + ", written back " + numMappedPageWrites);
+	if (maxWorkingSetSize != 0)
+	    System.out.println("Working sets: largest " + maxWorkingSetSize
+			       + ", trims " + numWorkingSetTrims
+			       + ", pages released " + numWorkingSetPagesFreed);
+	if (numProcessSuspends != 0)
+	    System.out.println("Suspended processes: " + numProcessSuspends
+			       + ", pages out " + numProcessPagesOut
+			       + ", pages in " + numProcessPagesIn);
+	if (numTLBHits != 0 || numTLBEvictions != 0)
+	    System.out.println("TLB: hits " + numTLBHits
+			       + ", misses " + numTLBMisses
+			       + ", evictions " + numTLBEvictions);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -44,6 +83,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that Nachos has skipped because no
+     * thread was ready to run.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,6 +101,113 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of resident pages the kernel has evicted. */
+    public int numEvictions = 0;
+    /**
+     * The total number of evictions that had to write the page to swap
+     * first.
+     */
+    public int numDirtyEvictions = 0;
+    /**
+     * The total number of evictions made ahead of demand, to refill the
+     * kernel's pool of free frames.
+     */
+    public int numBackgroundEvictions = 0;
+    /** The total number of evicted pages that were faulted back in. */
+    public int numRefaults = 0;
+    /**
+     * The total number of pages read into memory ahead of demand, along with
+     * a faulting page.
+     */
+    public int numPrefetches = 0;
+    /** The total number of pages read ahead that were later used. */
+    public int numPrefetchHits = 0;
+    /**
+     * The total number of TLB entries filled with neighbouring resident
+     * pages on a TLB miss.
+     */
+    public int numFaultAround = 0;
+    /** The total number of pages stored compressed in the swap cache. */
+    public int numSwapCacheStores = 0;
+    /**
+     * The total number of evicted pages that were all zeros, and so were
+     * not stored at all.
+     */
+    public int numZeroPageStores = 0;
+    /**
+     * The total number of pages swapped in from the swap cache or from a
+     * zero page marker, without reading the swap file.
+     */
+    public int numSwapCacheHits = 0;
+    /**
+     * The total number of pages moved from the swap cache to the swap file
+     * to make room.
+     */
+    public int numSwapCacheSpills = 0;
+    /**
+     * The total number of times the shared zero page was mapped for a page
+     * that had never been written.
+     */
+    public int numZeroPageMaps = 0;
+    /**
+     * The total number of writes to the shared zero page that gave the page
+     * a frame of its own.
+     */
+    public int numZeroPageCopies = 0;
+    /** The total number of free frames zeroed by the idle thread. */
+    public int numFramesPrezeroed = 0;
+    /**
+     * The total number of read-only executable pages loaded into the shared
+     * page cache.
+     */
+    public int numSharedTextLoads = 0;
+    /**
+     * The total number of times a read-only executable page was found in
+     * the shared page cache, and mapped without reading the executable.
+     */
+    public int numSharedTextHits = 0;
+    /**
+     * The total number of resident pages shared copy-on-write between a
+     * process and the child it forked.
+     */
+    public int numForkSharedPages = 0;
+    /**
+     * The total number of writes to a copy-on-write page that gave the
+     * writer a copy of its own.
+     */
+    public int numCopyOnWriteCopies = 0;
+    /** The total number of pages of memory-mapped files read in. */
+    public int numMappedPageReads = 0;
+    /**
+     * The total number of modified pages of memory-mapped files written back
+     * to their files.
+     */
+    public int numMappedPageWrites = 0;
+    /** The largest working set of any process, in pages. */
+    public int maxWorkingSetSize = 0;
+    /**
+     * The total number of page faults that found their process faulting so
+     * rarely that it gave back the frames outside its working set.
+     */
+    public int numWorkingSetTrims = 0;
+    /** The total number of frames given back that way. */
+    public int numWorkingSetPagesFreed = 0;
+    /**
+     * The total number of times a process was suspended and swapped out as a
+     * whole because the system was thrashing.
+     */
+    public int numProcessSuspends = 0;
+    /** The total number of pages swapped out with suspended processes. */
+    public int numProcessPagesOut = 0;
+    /** The total number of pages swapped back in when they resumed. */
+    public int numProcessPagesIn = 0;
+    /** The total number of address translations satisfied by the TLB. */
+    public long numTLBHits = 0;
+    /**
+     * The total number of valid TLB entries that have been replaced by a
+     * translation for a different page.
+     */
+    public int numTLBEvictions = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -0,0 +1,262 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Structured, flag-guarded tracing. A trace record is a debug flag, a format
+ * string and up to four arguments, stamped with the simulated time. Records
+ * are kept in a fixed-size ring buffer, and are only formatted when they are
+ * printed, so the cost of tracing falls on the reader rather than the code
+ * being traced.
+ *
+ * <p>
+ * A record is only made if its flag was enabled on the command line (with
+ * <tt>-d</tt>, exactly as for <tt>Lib.debug()</tt>). Because Java evaluates
+ * the arguments of a call before making it, hot paths should test the flag
+ * first, so that a disabled trace point costs a single array load:
+ *
+ * <pre>
+ *	if (Trace.enabled(dbgVM))
+ *	    Trace.trace(dbgVM, "swap out ppn %d to spn %d", ppn, spn);
+ * </pre>
+ *
+ * <p>
+ * Where records go is set by the configuration file:
+ * <ul>
+ * <li><tt>Trace.bufferSize</tt> is the number of records kept in the ring
+ * buffer (rounded up to a power of two, default 1024).
+ * <li><tt>Trace.file</tt> names a file that every record is streamed to as
+ * soon as it is made.
+ * <li><tt>Trace.quiet</tt>, if <tt>true</tt> and no file is given, keeps
+ * records in the ring buffer only. Otherwise they are also printed to
+ * standard output, like <tt>Lib.debug()</tt> output. A quiet buffer is
+ * dumped if Nachos terminates because of an exception.
+ * </ul>
+ *
+ * <p>
+ * Appending a record never blocks: writers claim ring slots with an atomic
+ * counter, and the oldest records are silently overwritten.
+ */
+public final class Trace {
+    /**
+     * Prevent instantiation.
+     */
+    private Trace() {
+    }
+
+    /**
+     * Set up the trace buffer and output stream. Called once by
+     * <tt>Machine</tt>, after the configuration file and the command line
+     * have been read.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    static void initialize(Privilege privilege) {
+	Lib.assertTrue(Trace.privilege == null);
+	Trace.privilege = privilege;
+
+	for (int i=0; i<flags.length; i++)
+	    flags[i] = Lib.test((char) i);
+
+	int size = 1;
+	while (size < Config.getInteger("Trace.bufferSize", 1024))
+	    size *= 2;
+
+	ring = new Record[size];
+	for (int i=0; i<size; i++)
+	    ring[i] = new Record();
+
+	final String fileName = Config.getString("Trace.file", null);
+	if (fileName != null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() {
+			try {
+			    stream = new PrintStream(
+				new FileOutputStream(new File(fileName)), true);
+			}
+			catch (IOException e) {
+			}
+		    }
+		});
+	    Lib.assertTrue(stream != null, "could not open " + fileName);
+	}
+	else if (!Config.getBoolean("Trace.quiet", false)) {
+	    stream = System.out;
+	}
+    }
+
+    /**
+     * Tests if trace records for <i>flag</i> will be kept.
+     *
+     * @param	flag	the debug flag to test.
+     * @return	<tt>true</tt> if this flag was enabled on the command line.
+     */
+    public static boolean enabled(char flag) {
+	return flag < flags.length && flags[flag];
+    }
+
+    /**
+     * Make a trace record with no arguments.
+     *
+     * @param	flag	the debug flag the record belongs to.
+     * @param	format	the message.
+     */
+    public static void trace(char flag, String format) {
+	if (enabled(flag))
+	    record(flag, format, 0, null, null, null, null);
+    }
+
+    /**
+     * Make a trace record with one argument.
+     *
+     * @param	flag	the debug flag the record belongs to.
+     * @param	format	a <tt>String.format()</tt> format string.
+     * @param	arg0	the argument.
+     */
+    public static void trace(char flag, String format, Object arg0) {
+	if (enabled(flag))
+	    record(flag, format, 1, arg0, null, null, null);
+    }
+
+    /**
+     * Make a trace record with two arguments.
+     *
+     * @param	flag	the debug flag the record belongs to.
+     * @param	format	a <tt>String.format()</tt> format string.
+     * @param	arg0	the first argument.
+     * @param	arg1	the second argument.
+     */
+    public static void trace(char flag, String format, Object arg0,
+			     Object arg1) {
+	if (enabled(flag))
+	    record(flag, format, 2, arg0, arg1, null, null);
+    }
+
+    /**
+     * Make a trace record with three arguments.
+     *
+     * @param	flag	the debug flag the record belongs to.
+     * @param	format	a <tt>String.format()</tt> format string.
+     * @param	arg0	the first argument.
+     * @param	arg1	the second argument.
+     * @param	arg2	the third argument.
+     */
+    public static void trace(char flag, String format, Object arg0,
+			     Object arg1, Object arg2) {
+	if (enabled(flag))
+	    record(flag, format, 3, arg0, arg1, arg2, null);
+    }
+
+    /**
+     * Make a trace record with four arguments.
+     *
+     * @param	flag	the debug flag the record belongs to.
+     * @param	format	a <tt>String.format()</tt> format string.
+     * @param	arg0	the first argument.
+     * @param	arg1	the second argument.
+     * @param	arg2	the third argument.
+     * @param	arg3	the fourth argument.
+     */
+    public static void trace(char flag, String format, Object arg0,
+			     Object arg1, Object arg2, Object arg3) {
+	if (enabled(flag))
+	    record(flag, format, 4, arg0, arg1, arg2, arg3);
+    }
+
+    /**
+     * Print the records still in the ring buffer, oldest first.
+     *
+     * @param	out	the stream to print to.
+     */
+    public static void dump(PrintStream out) {
+	if (ring == null)
+	    return;
+
+	long last = next.get();
+	long first = Math.max(0, last - ring.length);
+
+	out.println("Trace (last " + (last-first) + " records):");
+	for (long i=first; i<last; i++)
+	    out.println(ring[(int) (i & (ring.length-1))]);
+	out.println("  (end of trace)");
+    }
+
+    /**
+     * Dump the ring buffer to standard output, if records were not already
+     * being printed as they were made.
+     */
+    static void dumpIfQuiet() {
+	if (ring != null && stream == null && next.get() > 0)
+	    dump(System.out);
+    }
+
+    private static void record(char flag, String format, int numArgs,
+			       Object arg0, Object arg1, Object arg2,
+			       Object arg3) {
+	// before initialize(), e.g. while the devices are being created
+	if (ring == null)
+	    return;
+
+	long seq = next.getAndIncrement();
+	Record r = ring[(int) (seq & (ring.length-1))];
+
+	r.time = privilege.stats.totalTicks;
+	r.flag = flag;
+	r.format = format;
+	r.numArgs = numArgs;
+	r.arg0 = arg0;
+	r.arg1 = arg1;
+	r.arg2 = arg2;
+	r.arg3 = arg3;
+
+	if (stream != null)
+	    stream.println(r);
+    }
+
+    private static class Record {
+	public String toString() {
+	    String message;
+	    switch (numArgs) {
+	    case 0:
+		message = format;
+		break;
+	    case 1:
+		message = String.format(format, arg0);
+		break;
+	    case 2:
+		message = String.format(format, arg0, arg1);
+		break;
+	    case 3:
+		message = String.format(format, arg0, arg1, arg2);
+		break;
+	    default:
+		message = String.format(format, arg0, arg1, arg2, arg3);
+		break;
+	    }
+
+	    return "[" + time + " " + flag + "] " + message;
+	}
+
+	long time;
+	char flag;
+	String format;
+	int numArgs;
+	Object arg0, arg1, arg2, arg3;
+    }
+
+    private static Privilege privilege = null;
+
+    /** The debug flags that were enabled, indexed by flag character. */
+    private static boolean[] flags = new boolean[0x80];
+    private static Record[] ring = null;
+    /** The sequence number of the next record to be made. */
+    private static AtomicLong next = new AtomicLong(0);
+    private static PrintStream stream = null;
+}
@@ -49,6 +49,7 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -80,6 +81,13 @@ public final class TranslationEntry {
      */
     public boolean dirty;
 
+    /**
+     * The address space this translation belongs to. A TLB entry is only
+     * used while the processor's current ASID matches this field. Ignored
+     * in page tables.
+     */
+    public int asid;
+
     @Override
     public String toString() {
         return "TranslationEntry{" +
@@ -89,6 +97,7 @@ public final class TranslationEntry {
                 ", readOnly=" + readOnly +
                 ", used=" + used +
                 ", dirty=" + dirty +
+                ", asid=" + asid +
                 '}';
     }
 }
@@ -158,6 +158,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several ticks at once. The effect is
+	 * the same as calling <tt>tick(inKernelMode)</tt> <i>count</i> times,
+	 * provided no interrupt comes due before the last of those ticks.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance by.
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Return the amount of simulated time until the next pending interrupt
+	 * is due, or <tt>Long.MAX_VALUE</tt> if there are no pending interrupts.
+	 *
+	 * @return	the number of ticks until the next interrupt.
+	 */
+	public long timeUntilNextInterrupt();
     }
 
     /**
@@ -0,0 +1,37 @@
+/* argtest.c
+ *    Test of passing arguments to exec(). The program runs itself again
+ *    and again with one argument, and each child checks that it got it.
+ *
+ *    Run it with "-m 8", so that there are more runs than physical pages:
+ *    if the frame holding the arguments of each child stayed pinned after
+ *    the child exited, the test would run out of frames and stall.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define Runs	12
+
+int
+main(int argc, char *argv[])
+{
+    char *args[1];
+    int i, pid, status;
+
+    if (argc > 0)		/* child: check the argument it was given */
+	return (strcmp(argv[0], "child") == 0) ? 0 : 2;
+
+    args[0] = "child";
+    status = 0;
+    for (i = 0; i < Runs; i++) {
+	pid = exec("argtest.coff", 1, args);
+	if (pid < 0 || join(pid, &status) != 1 || status != 0) {
+	    printf("run %d failed, status %d\n", i, status);
+	    return 1;
+	}
+    }
+
+    printf("argument test passed\n");
+    return 0;
+}
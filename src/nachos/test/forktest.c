@@ -0,0 +1,66 @@
+/* forktest.c
+ *    Simple test of fork(). The child gets a copy-on-write copy of the
+ *    parent's memory, and writes to it must not be seen by the parent.
+ *    Open files are shared, so the parent sees what the child wrote.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define Size	2048	/* the array spans several pages */
+
+int data[Size];
+char buf[16];
+
+int
+main()
+{
+    int fd, pid, status, i;
+
+    for (i = 0; i < Size; i++)
+	data[i] = i;
+
+    fd = creat("fork.txt");
+    if (fd < 0 || write(fd, "p", 1) != 1) {
+	printf("cannot create fork.txt\n");
+	return 1;
+    }
+
+    pid = fork();
+    if (pid < 0) {
+	printf("fork failed\n");
+	return 1;
+    }
+
+    if (pid == 0) {		/* child: overwrite its copy of the array */
+	for (i = 0; i < Size; i++) {
+	    if (data[i] != i)
+		exit(2);
+	    data[i] = -i;
+	}
+	exit(write(fd, "c", 1) == 1 ? 0 : 3);
+    }
+
+    if (join(pid, &status) != 1 || status != 0) {
+	printf("child failed, status %d\n", status);
+	return 1;
+    }
+
+    for (i = 0; i < Size; i++)
+	if (data[i] != i) {
+	    printf("data[%d] changed to %d in the parent\n", i, data[i]);
+	    return 1;
+	}
+
+    close(fd);
+    fd = open("fork.txt");
+    if (fd < 0 || read(fd, buf, 16) != 2 || buf[0] != 'p' || buf[1] != 'c') {
+	printf("fork.txt does not hold the child's write\n");
+	return 1;
+    }
+    close(fd);
+    unlink("fork.txt");
+
+    printf("fork test passed\n");
+    return 0;
+}
@@ -0,0 +1,67 @@
+/* mmaptest.c
+ *    Simple test of mmap() and munmap(). The file is read through the
+ *    mapping, changed in memory, and the changes must be in the file
+ *    once it has been unmapped.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define Size	5000			/* a little under five pages */
+#define Map	((char *) 0x40000)	/* well past the end of the program */
+
+char buf[Size];
+
+int
+main()
+{
+    int fd, i;
+
+    for (i = 0; i < Size; i++)
+	buf[i] = i & 0x3f;
+
+    fd = creat("mmap.txt");
+    if (fd < 0 || write(fd, buf, Size) != Size) {
+	printf("cannot create mmap.txt\n");
+	return 1;
+    }
+
+    if (mmap(fd, Map) != Size) {
+	printf("mmap failed\n");
+	return 1;
+    }
+    if (read(fd, buf, 1) != -1) {
+	printf("read succeeded on a mapped file\n");
+	return 1;
+    }
+
+    for (i = 0; i < Size; i++) {
+	if (Map[i] != (i & 0x3f)) {
+	    printf("byte %d is %d in the mapping\n", i, Map[i]);
+	    return 1;
+	}
+	Map[i]++;
+    }
+
+    if (munmap(Map) != 0 || munmap(Map) != -1) {
+	printf("munmap failed\n");
+	return 1;
+    }
+    close(fd);
+
+    fd = open("mmap.txt");
+    if (fd < 0 || read(fd, buf, Size) != Size) {
+	printf("cannot read mmap.txt\n");
+	return 1;
+    }
+    for (i = 0; i < Size; i++)
+	if (buf[i] != (i & 0x3f) + 1) {
+	    printf("byte %d is %d after munmap\n", i, buf[i]);
+	    return 1;
+	}
+    close(fd);
+    unlink("mmap.txt");
+
+    printf("mmap test passed\n");
+    return 0;
+}
@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +111,18 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process. The child
+ * has a new unique process ID, and starts with a copy of the parent's
+ * memory and open files. Both processes return from fork(): the child's
+ * address space is shared copy-on-write, so pages are only copied when
+ * either process writes them.
+ *
+ * In the parent, fork() returns the child's process ID, which can be passed
+ * to join(). In the child, it returns 0. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -216,18 +230,30 @@ int unlink(char *name);
 
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
+ * may be as large as 0x7FFFFFFF bytes. address must be page-aligned, and the
+ * map must not overlap the program or another map. Pages of the map are read
+ * from the file when first touched, and modified pages are written back to
+ * the file when they are paged out or the map is removed.
  * 
  * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * descriptor will fail (returning -1) until the map is removed.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * When the file descriptor is closed, or munmap() is called, all remaining
+ * dirty pages of the map will be flushed to disk and the map will be removed.
+ * Maps are not inherited by fork().
  *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map that starts at address, flushing its dirty pages to disk.
+ * The file descriptor stays open.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -363,7 +363,7 @@ public class KThread {
         idleThread = new KThread(new Runnable() {
             public void run() {
                 while (true)
-                    yield();
+                    idleYield();
             }
             // idle߳һֱִеĲʱyieldCPU
         });
@@ -374,6 +374,41 @@ public class KThread {
         idleThread.fork();
     }
 
+    /**
+     * Set the work the idle thread does when no other thread is ready, before
+     * it advances the clock to the next interrupt. The task runs in the idle
+     * thread with interrupts disabled, so it must never block, and it should
+     * return after a bounded amount of work.
+     *
+     * @param	task	the task to run, or <tt>null</tt> for none.
+     */
+    public static void setIdleTask(Runnable task) {
+        idleTask = task;
+    }
+
+    /**
+     * The idle thread's version of <tt>yield()</tt>. If another thread is
+     * ready, run it. Otherwise nothing can happen until the next interrupt,
+     * so let the interrupt controller advance the simulated clock straight to
+     * it instead of spinning one tick at a time.
+     */
+    private static void idleYield() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread nextThread = readyQueue.nextThread();
+        if (nextThread == null) {
+            // ûо̣߳ʱĹֱӿһж
+            if (idleTask != null)
+                idleTask.run();
+            Machine.interrupt().idle();
+        } else {
+            currentThread.ready();
+            nextThread.run();
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -860,4 +895,6 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    /** ߳ûо߳ʱĹ */
+    private static Runnable idleTask = null;
 }
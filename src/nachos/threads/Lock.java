@@ -50,6 +50,29 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Acquire this lock if it is <i>free</i>, without waiting. The current
+     * thread must not already hold this lock. Used by threads that must never
+     * block, such as the idle thread.
+     *
+     * @return	true if the lock was acquired.
+     */
+    public boolean tryAcquire() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	boolean acquired = (lockHolder == null);
+	if (acquired) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
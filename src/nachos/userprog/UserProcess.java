@@ -5,10 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -68,11 +66,31 @@ public class UserProcess {
 		if (!load(name, args)) {
 			return false;
 		}
+		startThread(name);
+		return true;
+	}
+
+	/**
+	 * Fork a thread to run this process. The address space of the process
+	 * must already be set up.
+	 *
+	 * @param	name	the name of the thread.
+	 */
+	protected void startThread(String name) {
 		UThread T=(UThread)new UThread(this).setName(name);
 		//һmap
 		pidThreadMap.put(this.processID, T);
 		T.fork();
-		return true;
+	}
+
+	/**
+	 * Record that this process created the process <i>pid</i>, so that it
+	 * may join it.
+	 *
+	 * @param	pid	the process ID of the child.
+	 */
+	protected void addChild(int pid) {
+		childrenCreated.add(pid);
 	}
 
 	/**
@@ -109,13 +127,22 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength+1];
-
-		int bytesRead = readVirtualMemory(vaddr, bytes);
-
-		for (int length=0; length<bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+		if (stringBuffer.length < maxLength+1)
+			stringBuffer = new byte[maxLength+1];
+
+		//ҳ룬ڶĲвnullֹҵٶ֮ҳ
+		int length = 0;
+		while (length <= maxLength) {
+			int pageLeft = Processor.pageSize - Processor.offsetFromAddress(vaddr+length);
+			int bytesRead = readVirtualMemory(vaddr+length, stringBuffer, length,
+							  Math.min(maxLength+1-length, pageLeft));
+			if (bytesRead == 0)
+				return null;
+
+			for (int end=length+bytesRead; length<end; length++) {
+				if (stringBuffer[length] == 0)
+					return new String(stringBuffer, 0, length);
+			}
 		}
 
 		return null;
@@ -154,27 +181,7 @@ public class UserProcess {
 	 */
 
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length && memoryAccessLock != null);
-		if (!validAddress(vaddr)) {
-			return 0;
-		} else {
-			Collection<MemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.READ);
-			//ڴ
-			int bytesRead = 0, temp;
-
-			memoryAccessLock.acquire();
-			for (MemoryAccess ma : memoryAccesses) {
-				//ִڴ
-				temp = ma.executeAccess();
-
-				if (temp == 0)
-					break;
-				else
-					bytesRead += temp;
-			}
-			memoryAccessLock.release();
-			return bytesRead;
-		}
+		return transfer(vaddr, data, offset, length, AccessType.READ);
 	}
 	/**
 	 * Transfer all data from the specified array to this process's virtual
@@ -204,52 +211,120 @@ public class UserProcess {
 	 * @return	the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return transfer(vaddr, data, offset, length, AccessType.WRITE);
+	}
+
+	/**
+	 * ҳڴ֮䴫ݣκζ
+	 * ʿЧַĩβЧдҳʱֹͣ
+	 */
+	private int transfer(int vaddr, byte[] data, int offset, int length, AccessType accessType) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length && memoryAccessLock != null);
-		if (!validAddress(vaddr)) {
+
+		int transferred = 0;
+		memoryAccessLock.acquire();
+		while (transferred < length && validAddress(vaddr + transferred)) {
+			int vpn = Processor.pageFromAddress(vaddr + transferred);
+			int amount = transferPage(pageTable[vpn], vaddr + transferred, data,
+						  offset + transferred, length - transferred, accessType);
+			if (amount == 0)
+				break;
+			transferred += amount;
+		}
+		memoryAccessLock.release();
+
+		return transferred;
+	}
+
+	/**
+	 * translationEntryӳһҳ֮ڴݣַvaddrʼ
+	 * lengthֽڣҳĩβֱӸڴ档
+	 * شֽҳЧдʱ0
+	 */
+	protected int transferPage(TranslationEntry translationEntry, int vaddr, byte[] data,
+				   int offset, int length, AccessType accessType) {
+		if (!translationEntry.valid)
 			return 0;
+
+		int pageOffset = Processor.offsetFromAddress(vaddr);
+		int amount = Math.min(length, Processor.pageSize - pageOffset);
+		int paddr = Processor.makeAddress(translationEntry.ppn, pageOffset);
+
+		if (accessType == AccessType.READ) {
+			//ڴ棬ڴеݶȡָ
+			Machine.processor().readMemory(paddr, data, offset, amount);
+		} else if (!translationEntry.readOnly) {
+			//дڴ棬λ1
+			Machine.processor().writeMemory(paddr, data, offset, amount);
+			translationEntry.dirty = true;
 		} else {
-			Collection<MemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.WRITE);
-			//ڴб
-			int bytesWritten = 0, temp;
-			memoryAccessLock.acquire();
-			for (MemoryAccess ma : memoryAccesses) {
-				//ִڴ
-				temp = ma.executeAccess();
-				if (temp == 0)
-					break;
-				else
-					bytesWritten += temp;
+			return 0;
+		}
+
+		translationEntry.used = true;
+		return amount;
+	}
+
+	/**
+	 * ҳļڴֱ֮Ӵݣм飺ÿҳpinPage̶
+	 * ļֱӶдҳڵ֡ȻunpinPageͷš
+	 * READڴдļWRITEļдڴ档ֻڴλJavaʱʹá
+	 * شֽûдκļʱļķֵ
+	 */
+	private int transferFile(OpenFile file, int vaddr, int length, AccessType accessType) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int transferred = 0;
+		while (transferred < length && validAddress(vaddr + transferred)) {
+			TranslationEntry translationEntry =
+				pinPage(Processor.pageFromAddress(vaddr + transferred), accessType);
+			if (translationEntry == null)
+				break;
+
+			int pageOffset = Processor.offsetFromAddress(vaddr + transferred);
+			int amount = Math.min(length - transferred, Processor.pageSize - pageOffset);
+			int paddr = Processor.makeAddress(translationEntry.ppn, pageOffset);
+
+			int count;
+			if (accessType == AccessType.READ) {
+				count = file.write(memory, paddr, amount);
+			} else {
+				count = file.read(memory, paddr, amount);
+				if (count > 0) {
+					//ֱдڴ飬֡лѽָ
+					Machine.processor().invalidateDecodedPage(translationEntry.ppn);
+					translationEntry.dirty = true;
+				}
 			}
-			memoryAccessLock.release();
+			translationEntry.used = true;
+			unpinPage(translationEntry);
 
-			return bytesWritten;
+			if (count <= 0)
+				return transferred > 0 ? transferred : count;
+			transferred += count;
+			if (count < amount)
+				break;
 		}
+
+		return transferred;
 	}
 
 	/**
-	 * ڴʵ
+	 * ȡҳvpnҳ֤ڼڵ֡䡣
+	 * ҳЧҪдҳֻʱnull
 	 */
-	private Collection<MemoryAccess> createMemoryAccesses(int vaddr, byte[] data, int offset, int length, AccessType accessType) {
-		LinkedList<MemoryAccess> returnList = new LinkedList<MemoryAccess>();
-
-		while (length > 0) {
-			//ʵַҳ
-			int vpn = Processor.pageFromAddress(vaddr);
-			//ܻҪʵ
-			int potentialPageAccess = Processor.pageSize - Processor.offsetFromAddress(vaddr);
-			//ȷʳ
-			int accessSize = length < potentialPageAccess ? length : potentialPageAccess;
-			//ķڴб
-			returnList.add(new MemoryAccess(accessType, data, vpn, offset, Processor.offsetFromAddress(vaddr), accessSize));
-			//Ѿʵĳ
-			length -= accessSize;
-			//ӷʹĵַ
-			vaddr += accessSize;
-			//ӷʹƫ
-			offset += accessSize;
-		}
+	protected TranslationEntry pinPage(int vpn, AccessType accessType) {
+		TranslationEntry translationEntry = pageTable[vpn];
+		if (!translationEntry.valid ||
+				(accessType == AccessType.WRITE && translationEntry.readOnly))
+			return null;
+		return translationEntry;
+	}
 
-		return returnList;
+	/**
+	 * ͷpinPage̶ҳ
+	 */
+	protected void unpinPage(TranslationEntry translationEntry) {
 	}
 
 
@@ -489,9 +564,12 @@ public class UserProcess {
 	 */
 	private void handleExit(int status) {
 
+		//رļͷã޷ɾЩļ
 		for (OpenFile file : openFiles) {
-			if (file != null)
+			if (file != null) {
 				file.close();
+				FileRef.unreferenceFile(file.getName());
+			}
 		}
 		//ͷԴ
 		this.unloadSections();
@@ -655,82 +733,6 @@ public class UserProcess {
 	public static enum AccessType {
 		READ, WRITE
 	};
-	/**
-	 * ڴĲΪһ
-	 * ڹ
-	 */
-	public class MemoryAccess {
-		protected MemoryAccess(AccessType at, byte[] d, int _vpn, int dStart, int pStart, int len) {
-			accessType = at;
-			data = d;
-			vpn = _vpn;
-			dataStart = dStart;
-			pageStart = pStart;
-			length = len;
-		}
-
-		/**
-		 * ִڴд
-		 */
-		public int executeAccess() {
-			if (translationEntry == null)
-				//ûҪȥҳѰ
-				translationEntry = pageTable[vpn];
-			if (translationEntry.valid) {
-				if (accessType == AccessType.READ) {
-					//ڴ棬ڴеݶȡָ
-					System.arraycopy(Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), data, dataStart, length);
-					translationEntry.used = true;
-					return length;
-				} else if (!translationEntry.readOnly && accessType == AccessType.WRITE) {
-					//дڴ
-					System.arraycopy(data, dataStart, Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), length);
-					translationEntry.used = true;
-					//λ1
-					translationEntry.dirty = true;
-					return length;
-				}
-			}
-
-			return 0;
-		}
-
-		/**
-		 * 
-		 */
-		protected byte[] data;
-
-		/**
-		 * 
-		 */
-		protected AccessType accessType;
-
-		/**
-		 * ķ
-		 */
-		protected TranslationEntry translationEntry;
-
-		/**
-		 * ʼλ
-		 */
-		protected int dataStart;
-
-		/**
-		 * ֡ʼλ
-		 */
-		protected int pageStart;
-
-		/**
-		 * ʳ
-		 */
-		protected int length;
-
-		/**
-		 * ҳ
-		 */
-		protected int vpn;
-	}
-
 	/**
 	 * Handle the open(char *name) syscall. Very similar to creat(), so most comments
 	 * have been omitted.
@@ -773,21 +775,15 @@ public class UserProcess {
 		}
 
 		final OpenFile file = this.openFiles[fileDescriptor];
-		//ݵ ضȡֽ
-		final byte[] tmp = new byte[bufferSize];
-		Lib.debug('k', "read!");
-		final int numBytesRead = file.read(tmp, 0, bufferSize);
-		//ԺҪдڴ棬дݷдֽ
-		if(numBytesRead<=0)
-		{
-			Lib.debug('k', "return 0!");
-			return 0;
+		if (file.getFileSystem() == null || Machine.processor().isMemoryOffHeap())
+			return readThroughBuffer(file, virtualAddress, bufferSize);
+		//ļֱӶûҳڵ֡
+		final int numBytesRead = transferFile(file, virtualAddress, bufferSize, AccessType.WRITE);
+		if (numBytesRead < 0) {
+			return -1;
 		}
-		Lib.debug('k', "write!");
-		final int numBytesWritten = writeVirtualMemory(virtualAddress, tmp, 0, numBytesRead);
-		//жϣдֽڲһ£˵쳣
-
-		if (numBytesRead != numBytesWritten) {
+		if (numBytesRead == 0 && bufferSize > 0 && file.tell() < file.length()) {
+			//ݣûд
 			return -1;
 		}
 
@@ -810,18 +806,52 @@ public class UserProcess {
 		}
 
 		final OpenFile file = this.openFiles[fileDescriptor];
-		//
-		final byte[] tmp = new byte[count];
-		final int numBytesToWrite = readVirtualMemory(pBuffer, tmp);
-
-		if (numBytesToWrite != count) {
+		if (file.getFileSystem() == null || Machine.processor().isMemoryOffHeap())
+			return writeThroughBuffer(file, pBuffer, count);
+		if (count > 0 && !validAddress(pBuffer + count - 1)) {
 			return -1;
 		}
-		//to
-		// TODO(amidvidy): need to handle the case that file is actually an instance of SynchConsole.file()...
-		return file.write(tmp, 0, numBytesToWrite);
+		//ļֱдûҳڵ֡
+		return transferFile(file, pBuffer, count, AccessType.READ);
+	}
 
+	/**
+	 * ̨Ȳļϵͳļֽдڼ̶ûҳ
+	 * ڴ治JavaʱҲûпɹļֱӶд顣
+	 * ÿ̶̹СconsoleBufferֿ鴫
+	 */
+	private int readThroughBuffer(final OpenFile file, final int virtualAddress, final int bufferSize) {
+		int total = 0;
+		while (total < bufferSize) {
+			final int amount = Math.min(bufferSize - total, consoleBuffer.length);
+			final int numBytesRead = file.read(consoleBuffer, 0, amount);
+			if (numBytesRead <= 0)
+				break;
+			if (writeVirtualMemory(virtualAddress + total, consoleBuffer, 0, numBytesRead) != numBytesRead)
+				return -1;
+			total += numBytesRead;
+			if (numBytesRead < amount)
+				break;
+		}
 
+		return total;
+	}
+
+	private int writeThroughBuffer(final OpenFile file, final int pBuffer, final int count) {
+		int total = 0;
+		while (total < count) {
+			final int amount = Math.min(count - total, consoleBuffer.length);
+			if (readVirtualMemory(pBuffer + total, consoleBuffer, 0, amount) != amount)
+				return total > 0 ? total : -1;
+			final int numBytesWritten = file.write(consoleBuffer, 0, amount);
+			if (numBytesWritten <= 0)
+				return total > 0 ? total : numBytesWritten;
+			total += numBytesWritten;
+			if (numBytesWritten < amount)
+				break;
+		}
+
+		return total;
 	}
 
 	/**
@@ -1144,7 +1174,7 @@ public class UserProcess {
 		return (addr >= 0 && addr < pageTable.length * pageSize);
 	}
 	private boolean inPhysAddressSpace(int addr) {
-		return (addr >= 0 || addr < Machine.processor().getMemory().length);
+		return (addr >= 0 || addr < Machine.processor().getNumPhysPages() * pageSize);
 	}
 	/** The program being run by this process. */
 	protected Coff coff;
@@ -1158,7 +1188,13 @@ public class UserProcess {
 	protected final int stackPages = 8;
 
 	private int initialPC, initialSP;
-	private int argc, argv;
+	protected int argc, argv;
+
+	/** readVirtualMemoryStringַĻ */
+	private byte[] stringBuffer = new byte[0];
+
+	/** ̨дڴ治JavaʱĻһഫһҳ */
+	private byte[] consoleBuffer = new byte[Processor.pageSize];
 	/**
 	 * Constant. The return value for an error.
 	 */
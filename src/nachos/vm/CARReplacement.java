@@ -0,0 +1,177 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import nachos.machine.*;
+
+/**
+ * CAR (Clock with Adaptive Replacement, Bansal and Modha), the clock-based
+ * approximation of ARC. Resident pages are kept on two clocks: T1 holds
+ * pages seen once recently, T2 pages seen at least twice. Two ghost lists,
+ * B1 and B2, remember the pages recently evicted from each clock. A refault
+ * on a page in B1 means T1 was too small, and one in B2 that T2 was, so the
+ * target size of T1 adapts to the workload. A scan of pages touched once
+ * only ever displaces T1, which makes the policy scan resistant.
+ */
+public class CARReplacement extends PageReplacement {
+    /**
+     * Allocate a new CAR replacement policy.
+     */
+    public CARReplacement() {
+    }
+
+    @Override
+    public void initialize(VMKernel kernel) {
+        super.initialize(kernel);
+
+        int numFrames = kernel.getNumFrames();
+        next = new int[numFrames];
+        prev = new int[numFrames];
+        clock = new int[numFrames];
+    }
+
+    @Override
+    public int findVictim() {
+        int numFrames = kernel.getNumFrames();
+
+        for (int ppn = 0; ppn < numFrames; ppn++) {
+            if (!kernel.isFrameFixed(ppn) && kernel.isFrameFree(ppn)) {
+                unlink(ppn);
+                return ppn;
+            }
+        }
+
+        // frames passed over because they are fixed, per clock
+        int skipped1 = 0, skipped2 = 0;
+
+        while (true) {
+            boolean t1Ok = sizes[T1] > 0 && skipped1 < sizes[T1];
+            boolean t2Ok = sizes[T2] > 0 && skipped2 < sizes[T2];
+            // the kernel guarantees that some frame is not fixed
+            Lib.assertTrue(t1Ok || t2Ok);
+
+            boolean useT1 = t1Ok && (sizes[T1] >= Math.max(1, target) || !t2Ok);
+
+            int list = useT1 ? T1 : T2;
+            int ppn = heads[list];
+
+            if (kernel.isFrameFixed(ppn)) {
+                unlink(ppn);
+                append(list, ppn);
+                if (useT1)
+                    skipped1++;
+                else
+                    skipped2++;
+                continue;
+            }
+
+            TranslationEntry te = kernel.getFrameEntry(ppn);
+            if (te.used) {
+                // referenced again: promote to (or keep in) the frequent clock
+                te.used = false;
+                unlink(ppn);
+                append(T2, ppn);
+                continue;
+            }
+
+            // evict, remembering the page in the matching ghost list
+            unlink(ppn);
+            LinkedHashSet<Long> ghosts = (list == T1) ? b1 : b2;
+            ghosts.add(VMKernel.pageKey(te.vpn, kernel.getFrameOwner(ppn)));
+            return ppn;
+        }
+    }
+
+    @Override
+    public void pageLoaded(int ppn, int vpn, int pid) {
+        int numFrames = kernel.getNumFrames();
+        Long key = VMKernel.pageKey(vpn, pid);
+
+        if (b1.contains(key)) {
+            target = Math.min(target + Math.max(1, b2.size() / b1.size()), numFrames);
+            b1.remove(key);
+            append(T2, ppn);
+        }
+        else if (b2.contains(key)) {
+            target = Math.max(target - Math.max(1, b1.size() / b2.size()), 0);
+            b2.remove(key);
+            append(T2, ppn);
+        }
+        else {
+            // keep the ghost lists no larger than the cache
+            if (sizes[T1] + b1.size() >= numFrames)
+                removeOldest(b1);
+            else if (sizes[T1] + sizes[T2] + b1.size() + b2.size() >= 2 * numFrames)
+                removeOldest(b2);
+            append(T1, ppn);
+        }
+    }
+
+    @Override
+    public void pageFreed(int ppn) {
+        unlink(ppn);
+    }
+
+    private static void removeOldest(LinkedHashSet<Long> ghosts) {
+        Iterator<Long> i = ghosts.iterator();
+        if (i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    /** Add a frame at the tail of a clock, just behind its hand. */
+    private void append(int list, int ppn) {
+        Lib.assertTrue(clock[ppn] == NONE);
+
+        if (heads[list] == -1) {
+            next[ppn] = prev[ppn] = ppn;
+            heads[list] = ppn;
+        } else {
+            int head = heads[list];
+            int tail = prev[head];
+            next[tail] = ppn;
+            prev[ppn] = tail;
+            next[ppn] = head;
+            prev[head] = ppn;
+        }
+
+        clock[ppn] = list;
+        sizes[list]++;
+    }
+
+    /** Remove a frame from whichever clock it is on, if any. */
+    private void unlink(int ppn) {
+        int list = clock[ppn];
+        if (list == NONE)
+            return;
+
+        if (next[ppn] == ppn) {
+            heads[list] = -1;
+        } else {
+            next[prev[ppn]] = next[ppn];
+            prev[next[ppn]] = prev[ppn];
+            if (heads[list] == ppn)
+                heads[list] = next[ppn];
+        }
+
+        clock[ppn] = NONE;
+        sizes[list]--;
+    }
+
+    private static final int NONE = 0, T1 = 1, T2 = 2;
+
+    /** The circular lists: links and which clock each frame is on. */
+    private int[] next, prev, clock;
+    /** The hand (oldest frame) and size of each clock, indexed by T1/T2. */
+    private int[] heads = {-1, -1, -1};
+    private int[] sizes = {0, 0, 0};
+
+    /** Ghost lists of evicted page keys, oldest first. */
+    private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+    private LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+
+    /** The adaptive target size of T1. */
+    private int target = 0;
+}
@@ -0,0 +1,42 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The second-chance clock algorithm. The hand sweeps the frames, clearing
+ * used bits, and stops at the first free frame or the first frame whose
+ * used bit is already clear.
+ */
+public class ClockReplacement extends PageReplacement {
+    /**
+     * Allocate a new clock replacement policy.
+     */
+    public ClockReplacement() {
+    }
+
+    @Override
+    public int findVictim() {
+        int numFrames = kernel.getNumFrames();
+
+        while (true) {
+            clockHand = (clockHand + 1) % numFrames;
+
+            // skip fixed frames
+            if (kernel.isFrameFixed(clockHand))
+                continue;
+
+            // a free frame can be used at once
+            if (kernel.isFrameFree(clockHand))
+                return clockHand;
+
+            // second chance
+            TranslationEntry te = kernel.getFrameEntry(clockHand);
+            if (te.used)
+                te.used = false;
+            else
+                return clockHand;
+        }
+    }
+
+    private int clockHand = 0;
+}
@@ -0,0 +1,34 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Replaces the entry of the set that was filled longest ago.
+ */
+public class FIFOTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new FIFO TLB replacement policy.
+     */
+    public FIFOTLBReplacement() {
+        fillTime = new long[Machine.processor().getTLBSize()];
+    }
+
+    @Override
+    public int findVictim(int first, int count) {
+        int victim = first;
+        for (int i = first + 1; i < first + count; i++) {
+            if (fillTime[i] < fillTime[victim])
+                victim = i;
+        }
+        return victim;
+    }
+
+    @Override
+    public void entryFilled(int number) {
+        fillTime[number] = ++fills;
+    }
+
+    /** The value of fills when each entry was last filled. */
+    private long[] fillTime;
+    private long fills = 0;
+}
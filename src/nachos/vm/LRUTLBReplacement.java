@@ -0,0 +1,31 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Replaces the entry of the set that was used longest ago, as recorded by
+ * the processor on every TLB hit.
+ */
+public class LRUTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new LRU TLB replacement policy.
+     */
+    public LRUTLBReplacement() {
+    }
+
+    @Override
+    public int findVictim(int first, int count) {
+        Processor processor = Machine.processor();
+
+        int victim = first;
+        long oldest = processor.getTLBLastUse(first);
+        for (int i = first + 1; i < first + count; i++) {
+            long lastUse = processor.getTLBLastUse(i);
+            if (lastUse < oldest) {
+                victim = i;
+                oldest = lastUse;
+            }
+        }
+        return victim;
+    }
+}
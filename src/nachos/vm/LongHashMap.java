@@ -0,0 +1,153 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from <tt>long</tt> keys to objects, using open addressing with
+ * linear probing. Keys are never boxed, so lookups do not allocate. Not
+ * synchronized; callers provide their own locking.
+ *
+ * @param <V> the type of the values.
+ */
+public class LongHashMap<V> {
+    /**
+     * Allocate a new, empty map.
+     */
+    public LongHashMap() {
+        this(16);
+    }
+
+    /**
+     * Allocate a new, empty map with room for about <i>expected</i> entries
+     * before it has to grow.
+     *
+     * @param expected the number of entries expected.
+     */
+    @SuppressWarnings("unchecked")
+    public LongHashMap(int expected) {
+        int capacity = 8;
+        while (capacity * 3 / 4 < expected)
+            capacity *= 2;
+
+        keys = new long[capacity];
+        values = (V[]) new Object[capacity];
+    }
+
+    /**
+     * Return the value for <i>key</i>, or <tt>null</tt> if there is none.
+     */
+    public V get(long key) {
+        int i = find(key);
+        return (i < 0) ? null : values[i];
+    }
+
+    /**
+     * Test whether the map holds a value for <i>key</i>.
+     */
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Map <i>key</i> to <i>value</i>, which must not be <tt>null</tt>.
+     *
+     * @return the previous value for <i>key</i>, or <tt>null</tt>.
+     */
+    public V put(long key, V value) {
+        if ((size + 1) * 4 > keys.length * 3)
+            resize(keys.length * 2);
+
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == null) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return null;
+            }
+            if (keys[i] == key) {
+                V old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Remove the value for <i>key</i>.
+     *
+     * @return the value that was removed, or <tt>null</tt> if there was none.
+     */
+    public V remove(long key) {
+        int i = find(key);
+        if (i < 0)
+            return null;
+
+        V old = values[i];
+        size--;
+
+        // shift later entries of the probe sequence back into the gap, so
+        // that lookups never need tombstones
+        int mask = keys.length - 1;
+        int gap = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+
+        return old;
+    }
+
+    /**
+     * Return the number of entries in the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove every entry.
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return i;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        V[] oldValues = values;
+
+        keys = new long[capacity];
+        values = (V[]) new Object[capacity];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private long[] keys;
+    private V[] values;
+    private int size = 0;
+}
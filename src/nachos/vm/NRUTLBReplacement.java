@@ -0,0 +1,52 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Not-recently-used replacement. Entries are ranked by their used and dirty
+ * bits, and the first entry of the lowest class is replaced: unused and
+ * clean, then unused and dirty, then used and clean, then used and dirty.
+ * When every entry of the set has been used, the used bits of the set are
+ * copied to the inverted page table and cleared, so that the next choice
+ * reflects only recent references.
+ */
+public class NRUTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new NRU TLB replacement policy.
+     */
+    public NRUTLBReplacement() {
+    }
+
+    @Override
+    public int findVictim(int first, int count) {
+        Processor processor = Machine.processor();
+
+        int victim = first;
+        int lowest = 4;
+        for (int i = first; i < first + count; i++) {
+            TranslationEntry te = processor.readTLBEntry(i);
+            int rank = (te.used ? 2 : 0) + (te.dirty ? 1 : 0);
+            if (rank < lowest) {
+                victim = i;
+                lowest = rank;
+            }
+        }
+
+        // the whole set was used: start a new period for the others
+        if (lowest >= 2) {
+            VMKernel kernel = (VMKernel) ThreadedKernel.kernel;
+            for (int i = first; i < first + count; i++) {
+                if (i == victim)
+                    continue;
+
+                TranslationEntry te = processor.readTLBEntry(i);
+                kernel.propagateEntry(te);
+                te.used = false;
+                processor.writeTLBEntry(i, te);
+            }
+        }
+
+        return victim;
+    }
+}
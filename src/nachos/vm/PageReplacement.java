@@ -0,0 +1,64 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A page replacement policy. When a page must be brought into memory, the
+ * policy chooses the physical frame to hold it, evicting the page that is
+ * there if necessary.
+ *
+ * <p>
+ * All methods are called with the kernel's memory lock held. The kernel
+ * copies the TLB used and dirty bits into the frame table before asking for
+ * a victim, and clears the used bits in the TLB afterwards, so a policy can
+ * treat the used bit of a frame's translation entry as a reference bit that
+ * it is free to clear.
+ */
+public abstract class PageReplacement {
+    /**
+     * Allocate a new page replacement policy.
+     */
+    public PageReplacement() {
+    }
+
+    /**
+     * Attach this policy to the kernel whose frames it manages. Called once,
+     * before any other method.
+     *
+     * @param kernel the kernel.
+     */
+    public void initialize(VMKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    /**
+     * Choose the frame for a new page. The frame must not be fixed; at least
+     * one frame is not fixed when this is called. A free frame should be
+     * chosen if there is one.
+     *
+     * @return the physical page number of the chosen frame.
+     */
+    public abstract int findVictim();
+
+    /**
+     * Called after a page has been loaded into a frame chosen by
+     * <tt>findVictim()</tt>.
+     *
+     * @param ppn the frame.
+     * @param vpn the virtual page now in the frame.
+     * @param pid the process that owns the page.
+     */
+    public void pageLoaded(int ppn, int vpn, int pid) {
+    }
+
+    /**
+     * Called when a frame is freed because its owner exited.
+     *
+     * @param ppn the frame.
+     */
+    public void pageFreed(int ppn) {
+    }
+
+    /** The kernel whose frames are managed. */
+    protected VMKernel kernel;
+}
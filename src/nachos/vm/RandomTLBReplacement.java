@@ -0,0 +1,23 @@
+package nachos.vm;
+
+import java.util.Random;
+
+import nachos.machine.*;
+
+/**
+ * Replaces a random entry of the set.
+ */
+public class RandomTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new random TLB replacement policy.
+     */
+    public RandomTLBReplacement() {
+    }
+
+    @Override
+    public int findVictim(int first, int count) {
+        return first + generator.nextInt(count);
+    }
+
+    private Random generator = new Random();
+}
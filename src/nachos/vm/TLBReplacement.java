@@ -0,0 +1,37 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A TLB replacement policy. When a TLB miss occurs and every entry in the
+ * set that the missing page maps to is valid, the policy chooses which entry
+ * to replace.
+ *
+ * <p>
+ * All methods are called with the kernel's memory lock held, so the TLB does
+ * not change under a policy while it chooses.
+ */
+public abstract class TLBReplacement {
+    /**
+     * Allocate a new TLB replacement policy.
+     */
+    public TLBReplacement() {
+    }
+
+    /**
+     * Choose an entry to replace. Every entry in the set is valid.
+     *
+     * @param first the index of the first TLB entry in the set.
+     * @param count the number of entries in the set.
+     * @return the index of the entry to replace.
+     */
+    public abstract int findVictim(int first, int count);
+
+    /**
+     * Called after a new translation has been written to a TLB entry.
+     *
+     * @param number the index of the TLB entry that was filled.
+     */
+    public void entryFilled(int number) {
+    }
+}
@@ -1,6 +1,9 @@
 package nachos.vm;
 
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -16,9 +19,13 @@ public class VMKernel extends UserKernel {
     public VMKernel() {
         super();
 
-        //ʼҳ
-        for (int i = 0; i < invertedTable.length; i++)
+        //ʼҳʼʱ֡ڿ֡
+        for (int i = invertedTable.length - 1; i >= 0; i--) {
             invertedTable[i] = new MemoryEntry(i);
+            pushFreeFrame(invertedTable[i]);
+        }
+
+        Arrays.fill(asidOwners, -1);
     }
 
     /**
@@ -29,7 +36,80 @@ public class VMKernel extends UserKernel {
         super.initialize(args);
         memoryLock = new Lock();
         allfixed = new Condition(memoryLock);
+        pageoutNeeded = new Condition(memoryLock);
+        pageoutDone = new Condition(memoryLock);
+        textLoaded = new Condition(memoryLock);
         swap = new Swap();
+
+        //ҳû
+        pageReplacement = (PageReplacement) Lib.constructObject(
+                Config.getString("VMKernel.pageReplacement",
+                        "nachos.vm.ClockReplacement"));
+        pageReplacement.initialize(this);
+
+        //TLBû
+        tlbReplacement = (TLBReplacement) Lib.constructObject(
+                Config.getString("VMKernel.tlbReplacement",
+                        "nachos.vm.RandomTLBReplacement"));
+
+        //˳ȱҳʱԤҳԼȱҳʱһصĶ봰ڵҳ
+        maxReadahead = Config.getInteger("VMKernel.maxReadahead", 8);
+        faultAround = Config.getInteger("VMKernel.faultAround", 4);
+        Lib.assertTrue(maxReadahead >= 0 && faultAround >= 1
+                && (faultAround & (faultAround - 1)) == 0);
+
+        //һ֡ΪȫĹҳδдջҳ.bssҳĶʶӳ䵽
+        //ڴСʱһ֡òʧĬϲ
+        int numFrames = invertedTable.length;
+        if (Config.getBoolean("VMKernel.shareZeroPage", numFrames >= 16)) {
+            zeroFrame = takeFreeFrame(true);
+            Machine.processor().fillMemory(Processor.makeAddress(zeroFrame.translationEntry.ppn, 0),
+                    Processor.pageSize, (byte) 0);
+            numFrames--;
+        }
+
+        //֡صˮλڵˮλʱѻػ̣߳䵽ˮλ
+        freeLow = Config.getInteger("VMKernel.freeFramesLow", numFrames / 16);
+        freeHigh = Config.getInteger("VMKernel.freeFramesHigh", Math.max(freeLow, numFrames / 8));
+        Lib.assertTrue(freeLow >= 0 && freeHigh >= freeLow && freeHigh <= numFrames - 2);
+
+        //ڣʱڣԼǷȱҳƵʻչ֮֡
+        workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 5000);
+        pageFaultFrequency = Config.getBoolean("VMKernel.pageFaultFrequency", true);
+        Lib.assertTrue(workingSetWindow > 0);
+
+        //ڵȣthrashingWindowʱڷthrashingFaultsȱҳʱΪϵͳ
+        //廻һ̡thrashingFaultsΪ0ʱ
+        thrashingFaults = Config.getInteger("VMKernel.thrashingFaults", 16);
+        thrashingWindow = Config.getInteger("VMKernel.thrashingWindow", 20000);
+        Lib.assertTrue(thrashingFaults >= 0 && thrashingWindow > 0);
+        faultTimes = new long[thrashingFaults];
+
+        //ͬһִļĽֻ̹section֡
+        shareText = Config.getBoolean("VMKernel.shareText", true);
+
+        //ûо߳ʱɿ߳ԤȽ֡
+        KThread.setIdleTask(new Runnable() {
+            public void run() {
+                prezeroFrames();
+            }
+        });
+
+        idleFrames = new MemoryEntry[invertedTable.length];
+        new KThread(new Runnable() {
+            public void run() {
+                workingSetSampler();
+            }
+        }).setName("working set sampler").fork();
+
+        //ˮλΪ0ʱػ̣߳ȱҳʱͬ
+        if (freeLow > 0) {
+            new KThread(new Runnable() {
+                public void run() {
+                    pageoutDaemon();
+                }
+            }).setName("pageout daemon").fork();
+        }
     }
 
     /**
@@ -52,77 +132,263 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * ѡһ֡
+     * ѡһ֡ȴӿ֡ȡΪʱҳûѡ֡
+     * Ҫʱڵǰ߳ͬzeroʾҪȫ֡ʱȡԤ֡
+     * ص֡ѱ̶
      */
-    //ѡһҳ
-    private MemoryEntry clockAlgorithm() {
-//        System.out.println("ʱûstarting");
+    private MemoryEntry selectVictim(boolean zero) {
         //ڴֹͬ
         memoryLock.acquire();
         //ڴ֡ȫ̶õǰҳ˯
-        while (fixedCount == invertedTable.length) allfixed.sleep();
+        while (numFree == 0 && fixedCount == invertedTable.length) allfixed.sleep();
 
+        MemoryEntry me = (numFree > 0) ? takeFreeFrame(zero) : detachVictim();
+
+        //֡㣬ѻػ߳
+        if (numFree < freeLow)
+            pageoutNeeded.wake();
+
+        memoryLock.release();
+
+        //
+        writeBack(me);
+        return me;
+    }
+
+    /**
+     * ҳûѡ̶֡ӿٲұɾԭҳ
+     * ʱڴͷڴԷص֡writeBack
+     */
+    private MemoryEntry detachVictim() {
         //ҪTLBҳ״̬µҳ
         propagateAndFlushTLB(false);
 
-        // ѰҲ̶ҳ
-        while (true) {
-            clockHand = (clockHand+1) % invertedTable.length;
-            MemoryEntry page = invertedTable[clockHand];
-
-            //̶ҳ
-            if (page.fixed)
-                continue;
+        int victim = pageReplacement.findVictim();
+        MemoryEntry me = invertedTable[victim];
+        Lib.assertTrue(me.fixes == 0 && !me.free);
+        return detach(me);
+    }
 
-            // Чҳֱ滻
-            if (page.processID == -1 || page.translationEntry.valid == false)
-                break;
+    /**
+     * ̶һ֡ӿٲұɾԭҳʱڴ
+     * ͷڴԷص֡writeBack
+     */
+    private MemoryEntry detach(MemoryEntry me) {
+        int victim = me.translationEntry.ppn;
 
-            // λᷨ
-            if (page.translationEntry.used) {
-                page.translationEntry.used = false;
+        //̶ҳ
+        fix(me);
+        //ûҳTLBеЧ֡еַռеЧ
+        invalidateTLBEntry(victim);
+        me.prefetched = false;
+        if (Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "victim ppn %d (pid %d, vpn %d)",
+                    victim, me.processID, me.translationEntry.vpn);
+        //ӿٲұɾǰҳҳȴ
+        if (me.processID > -1) {
+            long key = pageKey(me.translationEntry.vpn, me.processID);
+            if (hashFindTable.remove(key) != null) {
+                Machine.stats().numEvictions++;
+                //ӳļҳûб޸ʱдأ֮ļ¶
+                if (me.file != null && !me.translationEntry.dirty) {
+                    me.file = null;
+                } else {
+                    me.pageOutKey = key;
+                    pagingOut.put(key, me);
+                }
             }
-            //ҳΪƷ
-            else {
-                break;
+        }
+        //ֻҳдأн̵ӳ䣬֮ʱӿִļ¶
+        else if (me.processID == SHARED) {
+            for (int i = 0; i < me.numMappers; i++)
+                hashFindTable.remove(me.mappers[i]);
+            me.numMappers = 0;
+            textCache.remove(me.textKey);
+            me.textKey = -1;
+            Machine.stats().numEvictions++;
+        }
+        //дʱƵ֡ҪΪÿӳḺ̌һݣǰЩҳҳȴ
+        else if (me.processID == COW) {
+            for (int i = 0; i < me.numMappers; i++) {
+                hashFindTable.remove(me.mappers[i]);
+                pagingOut.put(me.mappers[i], me);
             }
+            me.pageOutKey = me.mappers[0];
+            Machine.stats().numEvictions++;
         }
 
-        MemoryEntry me = invertedTable[clockHand];
-        //̶ҳ
-        fixedCount++;
-        me.fixed = true;
-        //ûҳTLBеЧ
-        invalidateTLBEntry(clockHand);
-        System.out.println("clockѡеMemoEntry:"+me);
-        //ӿٲұɾ
-        MemoryEntry me1 = null;
-        if (me.processID > -1)
-            me1 = hashFindTable.remove(new TableKey(me.translationEntry.vpn, me.processID));
-        
+        return me;
+    }
+
+    /**
+     * detachVictimѡ֡ԭҳдswap fileѵȴҳĽ̡
+     * ʱڴ
+     */
+    private void writeBack(MemoryEntry me) {
+        if (me.pageOutKey != -1)
+            writeBack(new MemoryEntry[] { me }, 1);
+    }
+
+    /**
+     * detachVictimѡһ֡ԭҳһдswap file
+     * swap fileҳϲΪһд룻ӳļҳдļʱڴ
+     */
+    private void writeBack(MemoryEntry[] pages, int count) {
+        MemoryEntry[] mapped = new MemoryEntry[count];
+        int numMapped = 0;
+        for (int i = 0; i < count; i++)
+            if (pages[i].pageOutKey != -1)
+                mapped[numMapped++] = pages[i];
+        if (numMapped == 0)
+            return;
+
+        MemoryEntry[] swapped = new MemoryEntry[numMapped];
+        int numSwapped = 0;
+        for (int i = 0; i < numMapped; i++) {
+            if (mapped[i].file != null)
+                writeToFile(mapped[i]);
+            else
+                swapped[numSwapped++] = mapped[i];
+        }
+        if (numSwapped > 0)
+            swap.swapOut(swapped, numSwapped);
+
+        memoryLock.acquire();
+        for (int i = 0; i < numMapped; i++) {
+            MemoryEntry me = mapped[i];
+            if (me.processID == COW) {
+                for (int j = 0; j < me.numMappers; j++)
+                    pagingOut.remove(me.mappers[j]);
+                me.numMappers = 0;
+            } else {
+                pagingOut.remove(me.pageOutKey);
+            }
+            me.pageOutKey = -1;
+            me.file = null;
+        }
+        pageoutDone.wakeAll();
         memoryLock.release();
+    }
 
-        //
-        if (me1 != null) swap.swapOut(me);
-//        System.out.println("ʱûfinished");
+    /**
+     * ػ̣߳֡ڵˮλʱѣں̨ҳֱ֡
+     * ﵽˮλʹȱҳֻͨһҳдҳ
+     */
+    private void pageoutDaemon() {
+        MemoryEntry[] victims = new MemoryEntry[freeHigh];
+
+        memoryLock.acquire();
+        while (true) {
+            //֡㹻֡֡ѹ̶
+            while (numFree >= freeLow || fixedCount + numFree == invertedTable.length)
+                pageoutNeeded.sleep();
+
+            if (Trace.enabled(dbgVM))
+                Trace.trace(dbgVM, "pageout daemon: %d free frames", numFree);
+
+            while (numFree < freeHigh && fixedCount + numFree < invertedTable.length) {
+                //һѡ䵽ˮλ֡һд
+                int count = 0;
+                while (count < freeHigh - numFree && fixedCount + numFree < invertedTable.length) {
+                    victims[count] = detachVictim();
+                    if (victims[count].pageOutKey != -1)
+                        Machine.stats().numBackgroundEvictions++;
+                    count++;
+                }
+
+                memoryLock.release();
+                writeBack(victims, count);
+                memoryLock.acquire();
+
+                //Żؿ֡
+                for (int i = 0; i < count; i++)
+                    freeFrame(victims[i]);
+            }
+        }
+    }
+
+    /**
+     * ӿ֡ȡһ̶֡zeroΪtrueʱȡԤ֡
+     * ȡδ֡֡Ҫ󡣵ʱڴ
+     */
+    private MemoryEntry takeFreeFrame(boolean zero) {
+        for (int i = numFree - 1; i >= 0; i--) {
+            if (invertedTable[freeFrames[i]].zeroed == zero) {
+                int ppn = freeFrames[i];
+                freeFrames[i] = freeFrames[numFree - 1];
+                freeFrames[numFree - 1] = ppn;
+                break;
+            }
+        }
+
+        MemoryEntry me = invertedTable[freeFrames[--numFree]];
+        me.free = false;
+        fix(me);
         return me;
     }
 
     /**
-     * ʹöλ㷨õе֡
+     * ̶һ֡֡ͬʱ̶̹Լ¼̶Ĵ
+     * ʱڴ
+     */
+    private void fix(MemoryEntry me) {
+        if (me.fixes++ == 0)
+            fixedCount++;
+    }
+
+    /**
+     * һ̶һΡѲκҳ֡Żؿ֡ءʱڴ
+     */
+    private void freeFrame(MemoryEntry me) {
+        Lib.assertTrue(me.fixes == 1);
+        me.processID = -1;
+        me.translationEntry.valid = false;
+        me.fixes = 0;
+        fixedCount--;
+        pushFreeFrame(me);
+        allfixed.wake();
+    }
+
+    /**
+     * һδ̶κν̵֡֡
+     */
+    private void pushFreeFrame(MemoryEntry me) {
+        Lib.assertTrue(me.fixes == 0 && !me.free);
+        me.free = true;
+        freeFrames[numFree++] = me.translationEntry.ppn;
+    }
+
+    /**
+     * ʹҳûԣõе֡֡ģ뽫ȫ
      */
     TranslationEntry requestFreePage(int vpn, int pid) {
-        System.out.println("λ㷨");
+        return requestPage(vpn, pid, false);
+    }
+
+    /**
+     * ʹҳûԣõһȫ֡
+     */
+    TranslationEntry requestZeroPage(int vpn, int pid) {
+        return requestPage(vpn, pid, true);
+    }
+
+    private TranslationEntry requestPage(int vpn, int pid, boolean zero) {
+        if (Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "request free page for vpn %d pid %d", vpn, pid);
         // ѡһҳ
-        MemoryEntry page = clockAlgorithm();
+        MemoryEntry page = selectVictim(zero);
 
-        // ҳ
-        int pageBeginAddress = Processor.makeAddress(page.translationEntry.ppn, 0);
-        Arrays.fill(Machine.processor().getMemory(), pageBeginAddress, pageBeginAddress + Processor.pageSize, (byte) 0);
+        // ҳ㣬߳֡
+        if (zero && !page.zeroed) {
+            int pageBeginAddress = Processor.makeAddress(page.translationEntry.ppn, 0);
+            Machine.processor().fillMemory(pageBeginAddress, Processor.pageSize, (byte) 0);
+        }
+        page.zeroed = false;
 
         // ҳ
         page.translationEntry.vpn = vpn;
         page.translationEntry.valid = true;
+        page.translationEntry.dirty = false;
         page.processID = pid;
 
         // ٲұ
@@ -131,44 +397,711 @@ public class VMKernel extends UserKernel {
         return page.translationEntry;
     }
 
+    /**
+     * ִļexeĵsectionsectionеspnҳڹҳеļ
+     */
+    static long textKey(int exe, int section, int spn) {
+        return ((long) exe << 32) | ((long) section << 16) | spn;
+    }
+
+    /**
+     * ִļıţidentityͬĿִļͬ
+     */
+    int getExecutableID(String identity) {
+        memoryLock.acquire();
+        Integer id = executableIDs.get(identity);
+        if (id == null)
+            executableIDs.put(identity, id = executableIDs.size());
+        memoryLock.release();
+        return id;
+    }
+
+    /**
+     * Ƿֻsection֡
+     */
+    boolean isTextShared() {
+        return shareText;
+    }
+
+    /**
+     * õֻҳtextKeyĹ֡ӳ䵽pidҳvpnҳҳʱ
+     * ֱӹڱ̶ʱȴɣһ֡ɵߴӿִļ
+     * textLoadedisTextLoadingжϡص֡ѱ̶
+     */
+    TranslationEntry requestTextPage(long textKey, int vpn, int pid) {
+        memoryLock.acquire();
+        MemoryEntry me = findText(textKey);
+        if (me == null) {
+            memoryLock.release();
+            MemoryEntry page = selectVictim(false);
+            memoryLock.acquire();
+
+            //֡ڼ̿Ѷҳ
+            if ((me = findText(textKey)) != null) {
+                freeFrame(page);
+            } else {
+                setupTextFrame(page, textKey, vpn);
+                mapText(page, pageKey(vpn, pid));
+                memoryLock.release();
+                return page.translationEntry;
+            }
+        }
+
+        Machine.stats().numSharedTextHits++;
+        fix(me);
+        mapText(me, pageKey(vpn, pid));
+        memoryLock.release();
+        return me.translationEntry;
+    }
+
+    /**
+     * ΪԤֻҳtextKeyõһ֡ӳ䵽pidҳvpnrequestPrefetchPage
+     * һֻʹõˮλϵĿ֡ҳҳʱnullص֡ѱ̶
+     * textLoadedunfix
+     */
+    TranslationEntry requestTextPrefetch(long textKey, int vpn, int pid) {
+        memoryLock.acquire();
+        if (numFree <= freeLow || textCache.containsKey(textKey)) {
+            memoryLock.release();
+            return null;
+        }
+
+        MemoryEntry me = takeFreeFrame(false);
+        setupTextFrame(me, textKey, vpn);
+        me.prefetched = true;
+        mapText(me, pageKey(vpn, pid));
+        memoryLock.release();
+
+        Machine.stats().numPrefetches++;
+        return me.translationEntry;
+    }
+
+    /**
+     * ֡ppnѴӿִļ룬ѵȴĽ
+     */
+    void textLoaded(int ppn) {
+        memoryLock.acquire();
+        invertedTable[ppn].loading = false;
+        textLoaded.wakeAll();
+        memoryLock.release();
+    }
+
+    /**
+     * ֡ppnǷҪӿִļ롣ֻԵ߹̶֡
+     */
+    boolean isTextLoading(int ppn) {
+        return invertedTable[ppn].loading;
+    }
+
+    /**
+     * ҳвֻҳtextKeyҳڶʱȴʱڴ
+     */
+    private MemoryEntry findText(long textKey) {
+        MemoryEntry me;
+        while ((me = textCache.get(textKey)) != null && me.loading)
+            textLoaded.sleep();
+        return me;
+    }
+
+    /**
+     * շ֡ΪҳֻҳtextKeyĹ֡δ롣ʱڴ
+     */
+    private void setupTextFrame(MemoryEntry me, long textKey, int vpn) {
+        me.processID = SHARED;
+        me.zeroed = false;
+        me.translationEntry.vpn = vpn;
+        me.translationEntry.valid = true;
+        me.translationEntry.readOnly = true;
+        me.translationEntry.used = false;
+        me.translationEntry.dirty = false;
+        me.textKey = textKey;
+        me.loading = true;
+        textCache.put(textKey, me);
+        pageReplacement.pageLoaded(me.translationEntry.ppn, vpn, SHARED);
+        Machine.stats().numSharedTextLoads++;
+    }
+
+    /**
+     * ֡ӳ䵽pageKeyΪkeyҳʱڴ
+     */
+    private void mapText(MemoryEntry me, long key) {
+        if (!hashFindTable.containsKey(key)) {
+            hashFindTable.put(key, me);
+            me.addMapper(key);
+        }
+    }
+
+    /**
+     * ΪԤõһ֡Ԥֻʹÿ֡еˮλϵ֡𻻳
+     * ҳڴлڱʱnullص֡ѱ̶ҳunfix
+     */
+    TranslationEntry requestPrefetchPage(int vpn, int pid) {
+        long key = pageKey(vpn, pid);
+        memoryLock.acquire();
+        if (numFree <= freeLow || hashFindTable.containsKey(key) || pagingOut.containsKey(key)) {
+            memoryLock.release();
+            return null;
+        }
+
+        MemoryEntry page = takeFreeFrame(false);
+        page.zeroed = false;
+        page.translationEntry.vpn = vpn;
+        page.translationEntry.valid = true;
+        page.translationEntry.used = false;
+        page.translationEntry.dirty = false;
+        page.processID = pid;
+        page.prefetched = true;
+        page.lastUse = Machine.timer().getTime();
+        hashFindTable.put(key, page);
+        pageReplacement.pageLoaded(page.translationEntry.ppn, vpn, pid);
+        memoryLock.release();
+
+        Machine.stats().numPrefetches++;
+        if (Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "prefetch vpn %d pid %d into ppn %d",
+                    vpn, pid, page.translationEntry.ppn);
+        return page.translationEntry;
+    }
+
     private void insertIntoFindTable(int vpn, int pid, MemoryEntry page) {
-        System.out.println("this");
         memoryLock.acquire();
-        hashFindTable.put(new TableKey(vpn, pid), page);
+        page.lastUse = Machine.timer().getTime();
+        hashFindTable.put(pageKey(vpn, pid), page);
+        pageReplacement.pageLoaded(page.translationEntry.ppn, vpn, pid);
+        memoryLock.release();
+    }
+
+    /**
+     * Ϊpidӳļfileҳvpnõһ֡ҳļдpositionʼ
+     * lengthֽڡ֡ģļ벢ҳ
+     * prefetchΪtrueʱrequestPrefetchPageͬò֡ʱnull
+     * ص֡ѱ̶
+     */
+    TranslationEntry requestFilePage(int vpn, int pid, OpenFile file, int position, int length,
+                                     boolean prefetch) {
+        //ҳʱдļдɺ¶
+        memoryLock.acquire();
+        while (!prefetch && pagingOut.containsKey(pageKey(vpn, pid)))
+            pageoutDone.sleep();
         memoryLock.release();
+
+        TranslationEntry te = prefetch ? requestPrefetchPage(vpn, pid) : requestFreePage(vpn, pid);
+        if (te == null)
+            return null;
+
+        memoryLock.acquire();
+        MemoryEntry me = invertedTable[te.ppn];
+        me.file = file;
+        me.filePosition = position;
+        me.fileLength = length;
+        te.readOnly = false;
+        memoryLock.release();
+
+        Machine.stats().numMappedPageReads++;
+        return te;
     }
 
     /**
-     * ҳĴ
+     * pidfirstVPNʼcountӳļҳ޸Ĺҳдļ
      */
-    TranslationEntry pageFault(int vpn, int pid) {
-        System.out.println("ҳ vpn:"+vpn+" pid:"+pid);
+    void unmapFilePages(int pid, int firstVPN, int count) {
+        memoryLock.acquire();
+        //TLBеdirtyλдطҳ
+        int asid = pid % Processor.numASIDs;
+        if (asidOwners[asid] == pid)
+            flushASID(asid);
+
+        MemoryEntry[] pages = new MemoryEntry[count];
+        int numPages = 0;
+        for (int vpn = firstVPN; vpn < firstVPN + count; vpn++) {
+            long key = pageKey(vpn, pid);
+            while (pagingOut.containsKey(key))
+                pageoutDone.sleep();
+
+            MemoryEntry me = hashFindTable.remove(key);
+            if (me != null) {
+                fix(me);
+                pages[numPages++] = me;
+            }
+        }
+        memoryLock.release();
+
+        for (int i = 0; i < numPages; i++)
+            if (pages[i].translationEntry.dirty)
+                writeToFile(pages[i]);
+
+        memoryLock.acquire();
+        for (int i = 0; i < numPages; i++) {
+            MemoryEntry me = pages[i];
+            me.file = null;
+            me.processID = -1;
+            me.translationEntry.valid = false;
+            me.prefetched = false;
+            pageReplacement.pageFreed(me.translationEntry.ppn);
+            //ȡ̶ʱŻؿ֡
+            unfix(me);
+        }
+        memoryLock.release();
+    }
+
+    /**
+     * ӳļҳдļ֡ѱ̶Ѵӿٲұɾ
+     */
+    private void writeToFile(MemoryEntry me) {
+        if (Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "write back vpn %d pid %d to %s at %d",
+                    me.translationEntry.vpn, me.processID, me.file.getName(), me.filePosition);
+        byte[] data = new byte[me.fileLength];
+        Machine.processor().readMemory(Processor.makeAddress(me.translationEntry.ppn, 0),
+                data, 0, data.length);
+        me.file.write(me.filePosition, data, 0, data.length);
+        Machine.stats().numMappedPageWrites++;
+    }
+
+    /**
+     * ҳĴҳԤreadaheadswap fileеҳ
+     */
+    TranslationEntry pageFault(int vpn, int pid, int readahead) {
+        if (Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "page fault vpn %d pid %d", vpn, pid);
+        //ҳڱȴ
+        memoryLock.acquire();
+        while (pagingOut.containsKey(pageKey(vpn, pid)))
+            pageoutDone.sleep();
+        memoryLock.release();
+
         if (!swap.pageInSwap(vpn, pid))
             //swap file
             return null;
+        //ҳٴα
+        Machine.stats().numRefaults++;
         TranslationEntry te = requestFreePage(vpn, pid);
         //Ѱҿյ֡
-        swap.swapIn(vpn, pid, te.ppn);
+
+        int[] vpns = new int[readahead + 1];
+        int[] ppns = new int[readahead + 1];
+        vpns[0] = vpn;
+        ppns[0] = te.ppn;
+        int count = 1;
+        for (; count <= readahead; count++) {
+            int v = vpn + count;
+            TranslationEntry prefetched;
+            if (!swap.pageInSwap(v, pid) || (prefetched = requestPrefetchPage(v, pid)) == null)
+                break;
+            vpns[count] = v;
+            ppns[count] = prefetched.ppn;
+        }
+
+        swap.swapIn(pid, vpns, ppns, count);
         //
+        for (int i = 1; i < count; i++)
+            unfix(ppns[i]);
         return te;
     }
 
+    /**
+     * pidȱҳʱãnowΪý̵ʱ䣨еû̬ʱ䣩
+     * ֻȱҳĻƽȫֵĵжϣĲͻ
+     * workingSetSamplerڶн̽
+     */
+    void recordPageFault(int pid, long now) {
+        memoryLock.acquire();
+        WorkingSet ws = workingSets.get(pid);
+        if (ws == null)
+            workingSets.put(pid, ws = new WorkingSet());
+
+        //ȱҳĻƽڵȱҳȨؽϴ
+        long interval = now - ws.lastFault;
+        ws.faultInterval = (ws.numFaults == 0) ? interval : (ws.faultInterval * 3 + interval) / 4;
+        ws.lastFault = now;
+        ws.numFaults++;
+
+        long time = Machine.timer().getTime();
+        ws.lastFaultTime = time;
+
+        //¼ȫֵȱҳʱ䣬жϵͳǷ
+        if (thrashingFaults > 0) {
+            faultTimes[numFaultTimes++ % thrashingFaults] = time;
+            thrashing = numFaultTimes >= thrashingFaults
+                    && time - faultTimes[numFaultTimes % thrashingFaults] <= thrashingWindow;
+        }
+        memoryLock.release();
+    }
+
+    /**
+     * ̣߳ÿڶн̲һ
+     */
+    private void workingSetSampler() {
+        while (true) {
+            ThreadedKernel.alarm.waitUntil(workingSetWindow / 2);
+            sampleWorkingSets();
+        }
+    }
+
+    /**
+     * ֡usedλ¸֡ʵʱ䣬workingSetWindow
+     * ʹ̵֡ĹȱҳƵʿƣPFFȱҳƵĽ̵֡
+     * ȱҳӣһûȱҳḶ̌СḶ̌ȱҳϡ٣
+     * ֡ʱ乤֮֡Żؿ֡أȱҳƵĽ
+     */
+    private void sampleWorkingSets() {
+        long now = Machine.timer().getTime();
+
+        memoryLock.acquire();
+        //֡ʱ
+        boolean trim = pageFaultFrequency && numFree < freeHigh;
+        for (WorkingSet ws : workingSets.values()) {
+            ws.size = 0;
+            ws.trim = trim && now - ws.lastFaultTime > workingSetWindow;
+        }
+
+        //TLBеusedλдطҳ
+        propagateAndFlushTLB(false);
+
+        int numIdle = 0;
+        for (MemoryEntry me : invertedTable) {
+            TranslationEntry te = me.translationEntry;
+            if (me.processID < 0 || me.free || !te.valid)
+                continue;
+            WorkingSet ws = workingSets.get(me.processID);
+            if (ws == null)
+                continue;
+
+            if (te.used) {
+                te.used = false;
+                me.lastUse = now;
+            }
+            if (now - me.lastUse <= workingSetWindow) {
+                ws.size++;
+            } else if (ws.trim && me.fixes == 0) {
+                pageReplacement.pageFreed(te.ppn);
+                idleFrames[numIdle++] = detach(me);
+                ws.released++;
+            }
+        }
+
+        for (Map.Entry<Integer, WorkingSet> entry : workingSets.entrySet()) {
+            WorkingSet ws = entry.getValue();
+            Machine.stats().maxWorkingSetSize = Math.max(Machine.stats().maxWorkingSetSize, ws.size);
+            if (ws.released > 0) {
+                Machine.stats().numWorkingSetTrims++;
+                if (Trace.enabled(dbgVM))
+                    Trace.trace(dbgVM, "pid %d: no fault for %d ticks, working set %d pages, %d released",
+                            entry.getKey(), now - ws.lastFaultTime, ws.size, ws.released);
+                ws.released = 0;
+            }
+        }
+        Machine.stats().numWorkingSetPagesFreed += numIdle;
+        memoryLock.release();
+
+        if (numIdle == 0)
+            return;
+
+        writeBack(idleFrames, numIdle);
+        memoryLock.acquire();
+        for (int i = 0; i < numIdle; i++)
+            freeFrame(idleFrames[i]);
+        memoryLock.release();
+    }
+
+    /**
+     * pidĹƴСϴβʱworkingSetWindowڱʹҳ
+     */
+    int getWorkingSetSize(int pid) {
+        memoryLock.acquire();
+        WorkingSet ws = workingSets.get(pid);
+        memoryLock.release();
+        return (ws == null) ? 0 : ws.size;
+    }
+
+    /**
+     * pidȱҳƵʣÿ1000ʱڣý̵û̬ʱ䣩ȱҳ
+     */
+    double getPageFaultRate(int pid) {
+        memoryLock.acquire();
+        WorkingSet ws = workingSets.get(pid);
+        memoryLock.release();
+        if (ws == null)
+            return 0;
+        return 1000.0 / Math.max(1, ws.faultInterval);
+    }
+
+    /**
+     * ϵͳǷthrashingWindowʱڷthrashingFaultsȱҳ
+     */
+    boolean isThrashing() {
+        return thrashing;
+    }
+
+    /**
+     * ڵȣϵͳʱȱҳĽpidڲκ֡ʱá̣
+     * һûйʱpidڴе˽ҳһ𻻳
+     * ̡֡Ľ̰˳ֱָȫȱҳƵʽֵһ£
+     * ûʱŻָҳһ
+     */
+    void suspendIfThrashing(int pid) {
+        long now = Machine.timer().getTime();
+        memoryLock.acquire();
+        if (!thrashing || workingSets.size() - suspended.size() < 2
+                || (lastSuspend >= 0 && now - lastSuspend < thrashingWindow)) {
+            memoryLock.release();
+            return;
+        }
+        lastSuspend = now;
+        thrashing = false;
+        suspended.add(pid);
+        Machine.stats().numProcessSuspends++;
+        memoryLock.release();
+
+        int[] vpns = swapOutProcess(pid);
+        if (Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "suspend pid %d, %d pages swapped out", pid, vpns.length);
+
+        //ʱ̶ָܷڵȴʱȱҳƵʻȻ½
+        memoryLock.acquire();
+        while (suspended.getFirst() != pid
+                || (recentFaults() >= thrashingFaults / 2 && workingSets.size() > suspended.size())) {
+            memoryLock.release();
+            ThreadedKernel.alarm.waitUntil(thrashingWindow);
+            memoryLock.acquire();
+        }
+        suspended.removeFirst();
+        memoryLock.release();
+
+        int count = swapInProcess(pid, vpns);
+        if (Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "resume pid %d, %d pages swapped in", pid, count);
+    }
+
+    /**
+     * thrashingWindowʱڵȱҳʱڴ
+     */
+    private int recentFaults() {
+        long now = Machine.timer().getTime();
+        int count = 0;
+        for (int i = 0; i < Math.min(numFaultTimes, thrashingFaults); i++)
+            if (now - faultTimes[i] <= thrashingWindow)
+                count++;
+        return count;
+    }
+
+    /**
+     * pidڴδ̶˽ҳһ𻻳swap fileвλҳϲд롣
+     * ػswapҳҳţҳ
+     */
+    private int[] swapOutProcess(int pid) {
+        memoryLock.acquire();
+        //TLBе״̬дطҳ
+        int asid = pid % Processor.numASIDs;
+        if (asidOwners[asid] == pid)
+            flushASID(asid);
+
+        MemoryEntry[] pages = new MemoryEntry[invertedTable.length];
+        int count = 0;
+        for (MemoryEntry me : invertedTable) {
+            if (me.processID == pid && !me.free && me.fixes == 0 && me.translationEntry.valid) {
+                pageReplacement.pageFreed(me.translationEntry.ppn);
+                pages[count++] = detach(me);
+            }
+        }
+        memoryLock.release();
+
+        int[] vpns = new int[count];
+        int numSwapped = 0;
+        for (int i = 0; i < count; i++)
+            if (pages[i].file == null)
+                vpns[numSwapped++] = pages[i].translationEntry.vpn;
+        writeBack(pages, count);
+
+        memoryLock.acquire();
+        for (int i = 0; i < count; i++)
+            freeFrame(pages[i]);
+        memoryLock.release();
+
+        Machine.stats().numProcessPagesOut += count;
+        vpns = Arrays.copyOf(vpns, numSwapped);
+        Arrays.sort(vpns);
+        return vpns;
+    }
+
+    /**
+     * ʱĽpidҳһ룬ֻʹÿ֡еˮλϵ֡
+     * ҳ֮ȱҳػҳ
+     */
+    private int swapInProcess(int pid, int[] vpns) {
+        int[] inVPNs = new int[vpns.length];
+        int[] ppns = new int[vpns.length];
+        int count = 0;
+        for (int vpn : vpns) {
+            TranslationEntry te;
+            if (!swap.pageInSwap(vpn, pid) || (te = requestPrefetchPage(vpn, pid)) == null)
+                continue;
+            inVPNs[count] = vpn;
+            ppns[count] = te.ppn;
+            count++;
+        }
+
+        swap.swapIn(pid, inVPNs, ppns, count);
+        for (int i = 0; i < count; i++)
+            unfix(ppns[i]);
+
+        Machine.stats().numProcessPagesIn += count;
+        return count;
+    }
+
     /**
      * ýڴеҳ
      */
     void freePages(int pid, int maxVPN) {
         memoryLock.acquire();
-        for (MemoryEntry page : invertedTable)
-            if (page.processID == pid) {
+        //ȴýڻҳдɣ֮ͷswap fileеҳ
+        while (isPagingOut(pid))
+            pageoutDone.sleep();
+
+        for (MemoryEntry page : invertedTable) {
+            //֡ҳУֻý̵ӳ
+            if (page.processID == SHARED) {
+                long key = pageKey(page.translationEntry.vpn, pid);
+                if (hashFindTable.remove(key) != null)
+                    page.removeMapper(key);
+            }
+            //дʱƵֻ֡ʣһӳʱΪý̵˽֡
+            else if (page.processID == COW) {
+                long key = pageKey(page.translationEntry.vpn, pid);
+                if (hashFindTable.remove(key) != null) {
+                    page.removeMapper(key);
+                    if (page.numMappers == 1)
+                        makePrivate(page);
+                }
+            }
+            else if (page.processID == pid) {
                 // Ч
-                hashFindTable.remove(new TableKey(page.translationEntry.vpn, page.processID));
+                hashFindTable.remove(pageKey(page.translationEntry.vpn, page.processID));
                 page.processID = -1;
+                page.file = null;
                 page.translationEntry.valid = false;
+                page.prefetched = false;
+                pageReplacement.pageFreed(page.translationEntry.ppn);
+                //̶֡ȡ̶ʱŻؿ֡
+                if (page.fixes == 0)
+                    pushFreeFrame(page);
             }
+        }
+
+        WorkingSet ws = workingSets.remove(pid);
+        if (ws != null && Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "pid %d exits: working set %d pages, %d faults, %d ticks between faults",
+                    pid, ws.size, ws.numFaults, ws.faultInterval);
+
+        memoryLock.release();
+        //swap fileڴе
+        swap.freePages(maxVPN, pid);
+    }
+
+    /**
+     * forkʱƽparentPidĵַռchildPidڴеҳƣ
+     * Ϊֻ̹֡ĳ̵һдʱٸƣswapеҳλ
+     */
+    void forkPages(int parentPid, int childPid, int maxVPN) {
+        memoryLock.acquire();
+        //еҳȲڴҲswapУȴ
+        while (isPagingOut(parentPid))
+            pageoutDone.sleep();
+
+        //TLBпдЧ֮дֻ쳣
+        int asid = parentPid % Processor.numASIDs;
+        if (asidOwners[asid] == parentPid)
+            flushASID(asid);
+
+        for (int vpn = 0; vpn < maxVPN; vpn++) {
+            MemoryEntry me = hashFindTable.get(pageKey(vpn, parentPid));
+            //ӳļҳӽ̼̳
+            if (me == null || me.file != null)
+                continue;
+
+            if (me.processID == parentPid) {
+                me.processID = COW;
+                me.writable = !me.translationEntry.readOnly;
+                me.translationEntry.readOnly = true;
+                me.prefetched = false;
+                me.addMapper(pageKey(vpn, parentPid));
+            }
+            hashFindTable.put(pageKey(vpn, childPid), me);
+            me.addMapper(pageKey(vpn, childPid));
+            Machine.stats().numForkSharedPages++;
+        }
+
+        swap.fork(parentPid, childPid, maxVPN);
+        memoryLock.release();
+    }
+
+    /**
+     * pidҪдteڵ֡teдʱƵ֡ʱݸƵһ˽֡У
+     * ˽֡ҳ򷵻teɵ߸readOnlyжܷд
+     * teѱ߹̶ص֡ͬѱ̶
+     */
+    TranslationEntry copyOnWrite(TranslationEntry te, int pid) {
+        memoryLock.acquire();
+        MemoryEntry me = invertedTable[te.ppn];
+        if (me.processID != COW || !me.writable) {
+            memoryLock.release();
+            return te;
+        }
+        memoryLock.release();
+
+        MemoryEntry page = selectVictim(false);
+        memoryLock.acquire();
+
+        //֡ڼ˳֡Ϊ˽֡
+        if (me.processID != COW) {
+            freeFrame(page);
+            memoryLock.release();
+            return te;
+        }
+
+        Machine.processor().copyMemory(Processor.makeAddress(te.ppn, 0),
+                Processor.makeAddress(page.translationEntry.ppn, 0), Processor.pageSize);
+        page.zeroed = false;
+        page.translationEntry.vpn = te.vpn;
+        page.translationEntry.valid = true;
+        page.translationEntry.readOnly = false;
+        page.translationEntry.used = false;
+        page.translationEntry.dirty = true;
+        page.processID = pid;
+        page.lastUse = Machine.timer().getTime();
+
+        long key = pageKey(te.vpn, pid);
+        hashFindTable.put(key, page);
+        pageReplacement.pageLoaded(page.translationEntry.ppn, te.vpn, pid);
+        me.removeMapper(key);
+        if (me.numMappers == 1)
+            makePrivate(me);
+        unfix(me);
+        Machine.stats().numCopyOnWriteCopies++;
+        if (Trace.enabled(dbgVM))
+            Trace.trace(dbgVM, "copy on write vpn %d pid %d from ppn %d to ppn %d",
+                    te.vpn, pid, te.ppn, page.translationEntry.ppn);
+
+        memoryLock.release();
+        return page.translationEntry;
+    }
 
-        memoryLock.release();
-        //swap fileڴе
-        swap.freePages(maxVPN, pid);
+    /**
+     * ֻʣһӳдʱ֡Ϊý̵˽ָ֡ԭĶдȨޡ
+     * ʱڴ
+     */
+    private void makePrivate(MemoryEntry me) {
+        me.processID = (int) (me.mappers[0] >>> 32);
+        me.lastUse = Machine.timer().getTime();
+        me.translationEntry.readOnly = !me.writable;
+        me.numMappers = 0;
+    }
+
+    private boolean isPagingOut(int pid) {
+        for (MemoryEntry page : invertedTable)
+            if (page.pageOutKey != -1 && (page.processID == pid || page.isMappedBy(pid)))
+                return true;
+        return false;
     }
 
     /**
@@ -176,16 +1109,24 @@ public class VMKernel extends UserKernel {
      */
     void unfix(int ppn) {
         memoryLock.acquire();
-        MemoryEntry me = invertedTable[ppn];
+        unfix(invertedTable[ppn]);
+        memoryLock.release();
+    }
 
-        if (me.fixed)
+    /**
+     * ֡ȡ̶ʱڴ
+     */
+    private void unfix(MemoryEntry me) {
+        if (me.fixes > 0 && --me.fixes == 0)
             fixedCount--;
 
-        me.fixed = false;
+        //֡ڹ̶ڼ˳Żؿ֡
+        if (me.processID == -1 && me.fixes == 0 && !me.free)
+            pushFreeFrame(me);
 
         allfixed.wake();
-
-        memoryLock.release();
+        if (numFree < freeLow)
+            pageoutNeeded.wake();
     }
 
     /**
@@ -195,11 +1136,14 @@ public class VMKernel extends UserKernel {
         MemoryEntry me = null;
         memoryLock.acquire();
 
-        if ((me = hashFindTable.get(new TableKey(vpn, pid))) != null) {
+        if ((me = hashFindTable.get(pageKey(vpn, pid))) != null) {
             //̶֡
-            if (!me.fixed)
-                fixedCount++;
-            me.fixed = true;
+            fix(me);
+            //Ԥҳһα
+            if (me.prefetched) {
+                me.prefetched = false;
+                Machine.stats().numPrefetchHits++;
+            }
         }
 
         memoryLock.release();
@@ -211,22 +1155,146 @@ public class VMKernel extends UserKernel {
     }
 
 
+    /**
+     * vpnfault-aroundڵĵһҳڰfaultAroundҳ
+     */
+    int faultAroundStart(int vpn) {
+        return vpn & ~(faultAround - 1);
+    }
+
+    /**
+     * vpnfault-around֮ĵһҳ
+     */
+    int faultAroundEnd(int vpn) {
+        return faultAroundStart(vpn) + faultAround;
+    }
+
+    /**
+     * TLBȱʧɺ󣬽fault-aroundڴеҳװTLB
+     * ˳ʱTLBȱʧֻʹЧTLB滻Ч
+     */
+    void mapAround(int vpn, int pid) {
+        if (faultAround == 1 || !hasInvalidTLBEntry(vpn))
+            return;
+
+        Processor p = Machine.processor();
+        int asid = p.getASID();
+        memoryLock.acquire();
+        for (int v = faultAroundStart(vpn); v < faultAroundEnd(vpn); v++) {
+            MemoryEntry me = (v == vpn) ? null : hashFindTable.get(pageKey(v, pid));
+            if (me == null || me.fixes > 0)
+                continue;
+
+            int first = p.getTLBSetStart(v);
+            int index = -1;
+            for (int i = first; i < first + p.getTLBAssociativity(); i++) {
+                TranslationEntry te = p.readTLBEntry(i);
+                if (te.valid && te.ppn == me.translationEntry.ppn && te.asid == asid) {
+                    //TLB
+                    index = -1;
+                    break;
+                }
+                if (!te.valid && index == -1)
+                    index = i;
+            }
+            if (index == -1)
+                continue;
+
+            TranslationEntry tlbEntry = new TranslationEntry(me.translationEntry);
+            tlbEntry.used = false;
+            tlbEntry.asid = asid;
+            p.writeTLBEntry(index, tlbEntry);
+            tlbReplacement.entryFilled(index);
+            Machine.stats().numFaultAround++;
+        }
+        memoryLock.release();
+    }
+
+    /**
+     * fault-aroundڵҳʹõTLBǷЧûʱmapAround
+     */
+    private boolean hasInvalidTLBEntry(int vpn) {
+        Processor p = Machine.processor();
+        for (int v = faultAroundStart(vpn); v < faultAroundEnd(vpn); v++) {
+            int first = p.getTLBSetStart(v);
+            for (int i = first; i < first + p.getTLBAssociativity(); i++)
+                if (!p.readTLBEntry(i).valid)
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * TLB״̬дطҳflushΪtrueʱЧTLB
+     * TLBusedλʹʱ㷨һܿµķ
+     */
     void propagateAndFlushTLB(boolean flush) {
         for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
             TranslationEntry te = Machine.processor().readTLBEntry(i);
-            //ÿTLBTLBΪinvalidһʹ
-            if (te.valid) {
-                TranslationEntry translationEntry = invertedTable[te.ppn].translationEntry;
-                //TLB״̬дҳ
-                if (translationEntry.valid && translationEntry.vpn == te.vpn) {
-                    translationEntry.used |= te.used;
-                    translationEntry.dirty |= te.dirty;
-                }
-            }
+            if (!te.valid)
+                continue;
+
+            propagateTLBEntry(te);
 
             if (flush) {
                 te.valid = false;
                 Machine.processor().writeTLBEntry(i, te);
+            } else if (te.used) {
+                te.used = false;
+                Machine.processor().writeTLBEntry(i, te);
+            }
+        }
+    }
+
+    /**
+     * һЧTLBuseddirtyλдطҳ
+     * ֡ڸTLBĵַռʱ
+     */
+    private void propagateTLBEntry(TranslationEntry te) {
+        MemoryEntry me = invertedTable[te.ppn];
+        TranslationEntry translationEntry = me.translationEntry;
+        if (translationEntry.valid && translationEntry.vpn == te.vpn
+                && (me.processID == asidOwners[te.asid] || me.processID == SHARED
+                    || me.processID == COW)) {
+            translationEntry.used |= te.used;
+            translationEntry.dirty |= te.dirty;
+        }
+    }
+
+    /**
+     * лʱл̵ĵַռ䡣ASIDɽ̺ŵõ
+     * ֻеASID֮ǰʱҪTLB
+     */
+    void activateASID(int pid) {
+        int asid = pid % Processor.numASIDs;
+        if (asidOwners[asid] != pid) {
+            flushASID(asid);
+            asidOwners[asid] = pid;
+        }
+        Machine.processor().setASID(asid);
+    }
+
+    /**
+     * ˳ʱͷASIDЧõַռTLB
+     */
+    void releaseASID(int pid) {
+        int asid = pid % Processor.numASIDs;
+        if (asidOwners[asid] == pid) {
+            flushASID(asid);
+            asidOwners[asid] = -1;
+        }
+    }
+
+    /**
+     * дزЧиASIDTLB
+     */
+    private void flushASID(int asid) {
+        for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+            TranslationEntry te = Machine.processor().readTLBEntry(i);
+            if (te.valid && te.asid == asid) {
+                propagateTLBEntry(te);
+                te.valid = false;
+                Machine.processor().writeTLBEntry(i, te);
             }
         }
     }
@@ -237,33 +1305,161 @@ public class VMKernel extends UserKernel {
     void invalidateTLBEntry(int ppn) {
         for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
             TranslationEntry te = Machine.processor().readTLBEntry(i);
+            //ַͬռTLBָͬһ֡ȫЧ
             if (te.valid && te.ppn == ppn) {
                 te.valid = false;
                 Machine.processor().writeTLBEntry(i, te);
-                break;
             }
         }
     }
 
-    void propagateEntry(int ppn, boolean used, boolean dirty) {
+    /** ֡ */
+    int getNumFrames() {
+        return invertedTable.length;
+    }
+
+    /** ֡Ƿ񱻹̶ڽл뻻Ȳڿ֡УûԲѡ */
+    boolean isFrameFixed(int ppn) {
+        return invertedTable[ppn].fixes > 0 || invertedTable[ppn].free;
+    }
+
+    /** ֡Ƿ */
+    boolean isFrameFree(int ppn) {
+        MemoryEntry me = invertedTable[ppn];
+        return me.processID == -1 || !me.translationEntry.valid;
+    }
+
+    /** ֡ҳûԿԶȡusedλ */
+    TranslationEntry getFrameEntry(int ppn) {
+        return invertedTable[ppn].translationEntry;
+    }
+
+    /** ӵи֡Ľ̺ */
+    int getFrameOwner(int ppn) {
+        return invertedTable[ppn].processID;
+    }
+
+    /**
+     * TLB״̬дصҳʱڴ
+     */
+    void propagateEntry(TranslationEntry te) {
+        Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+        if (te.valid)
+            propagateTLBEntry(te);
+    }
+
+    /**
+     * ѵǰ̵һҳװTLBʹøҳеЧӳͬһҳ
+     * TLBûѡ񣬱滻״̬дصҳ
+     * ѡд붼ڴɣȡʱл̣߳ڴڼ
+     * ѡеTLBֱӸǻᶪʧdirtyλ
+     */
+    void fillTLB(TranslationEntry entry) {
+        Processor p = Machine.processor();
         memoryLock.acquire();
-        TranslationEntry te = invertedTable[ppn].translationEntry;
-        te.used |= used;
-        te.dirty |= dirty;
+
+        int first = p.getTLBSetStart(entry.vpn);
+        int count = p.getTLBAssociativity();
+        int index = -1;
+        for (int i = first; i < first + count; i++) {
+            TranslationEntry te = p.readTLBEntry(i);
+            if (!te.valid || (te.vpn == entry.vpn && te.asid == p.getASID())) {
+                index = i;
+                break;
+            }
+        }
+
+        //ڸЧûѡ
+        if (index == -1)
+            index = tlbReplacement.findVictim(first, count);
+        propagateEntry(p.readTLBEntry(index));
+
+        //TLBǵǰ̵ASID
+        TranslationEntry tlbEntry = new TranslationEntry(entry);
+        tlbEntry.asid = p.getASID();
+        p.writeTLBEntry(index, tlbEntry);
+        tlbReplacement.entryFilled(index);
+
+        memoryLock.release();
+    }
+
+    /**
+     * ҳֻʽӳ䵽ǰ̵ҳvpnҳһαдʱ
+     * ֻ쳣ٷ˽е֡δùҳʱfalse
+     */
+    boolean mapZeroPage(int vpn) {
+        if (zeroFrame == null)
+            return false;
+
+        fillTLB(new TranslationEntry(vpn, zeroFrame.translationEntry.ppn,
+                true, true, false, false));
+        Machine.stats().numZeroPageMaps++;
+        return true;
+    }
+
+    /**
+     * ǰ̵ҳvpnõ˽֡ʹTLBӳ䵽ҳЧ
+     */
+    void unmapZeroPage(int vpn) {
+        if (zeroFrame == null)
+            return;
+
+        Processor p = Machine.processor();
+        int first = p.getTLBSetStart(vpn);
+        for (int i = first; i < first + p.getTLBAssociativity(); i++) {
+            TranslationEntry te = p.readTLBEntry(i);
+            if (te.valid && te.vpn == vpn && te.asid == p.getASID()
+                    && te.ppn == zeroFrame.translationEntry.ppn) {
+                te.valid = false;
+                p.writeTLBEntry(i, te);
+            }
+        }
+    }
+
+    /**
+     * ɿ߳ûо߳ʱã֡лδ֡㣬
+     * ֮Ҫȫ֡ʱͲ㡣̲߳ڴռʱֱӷ
+     */
+    private void prezeroFrames() {
+        if (!memoryLock.tryAcquire())
+            return;
+
+        for (int i = 0; i < numFree; i++) {
+            MemoryEntry me = invertedTable[freeFrames[i]];
+            if (!me.zeroed) {
+                Machine.processor().fillMemory(Processor.makeAddress(me.translationEntry.ppn, 0),
+                        Processor.pageSize, (byte) 0);
+                me.zeroed = true;
+                Machine.stats().numFramesPrezeroed++;
+            }
+        }
+
         memoryLock.release();
     }
 
     private static final char dbgVM = 'v';
 
+    /** TLBû */
+    TLBReplacement tlbReplacement;
+
+    /** ȱҳʱԤҳ */
+    int maxReadahead;
+
+    /** fault-aroundڵҳΪ2 */
+    private int faultAround;
+
+    /** ÿASIDǰĽ̺ţ-1ʾ */
+    private int[] asidOwners = new int[Processor.numASIDs];
+
     /** ҳ */
     private MemoryEntry[] invertedTable = new MemoryEntry[Machine.processor().getNumPhysPages()];
 
-    /** clock㷨ҲǶλ㷨ָ */
-    private int clockHand = 0;
+    /** ҳû */
+    private PageReplacement pageReplacement;
 
     /** ٲҷҳĹϣ */
     /** TLBһָ룬ָHASHFINDTABLE */
-    private Hashtable<TableKey,MemoryEntry> hashFindTable = new Hashtable<TableKey,MemoryEntry>();
+    private LongHashMap<MemoryEntry> hashFindTable = new LongHashMap<MemoryEntry>(invertedTable.length);
 
     /** ڴ */
     private Lock memoryLock;
@@ -274,33 +1470,78 @@ public class VMKernel extends UserKernel {
     /** ڴ֡ռʱ̵ȴ*/
     private Condition allfixed;
 
-    /** ҳеҳźͽ̺ŵ */
-    private static class TableKey {
-        TableKey(int vpn1, int pid1) {
-            vpn = vpn1;
-            pid = pid1;
-        }
+    /** ֡أ֡֡ */
+    private int[] freeFrames = new int[invertedTable.length];
 
-        @Override
-        public int hashCode() {
-            //ҳźpidΪhash codeΨһʶҳе
-            //256ܻͻ
-            return Processor.makeAddress(vpn, pid );
-        }
+    /** ֡֡ */
+    private int numFree = 0;
 
-        @Override
-        public boolean equals(Object x) {
-            if (this == x)
-                return true;
-            else if (x instanceof TableKey) {
-                TableKey xCasted = (TableKey)x;
-                return vpn.equals(xCasted.vpn) && pid.equals(xCasted.pid);
-            } else {
-                return false;
-            }
-        }
+    /** ֡صĵˮλ͸ˮλ */
+    private int freeLow, freeHigh;
+
+    /** ҳڵ֡δʱΪnull */
+    private MemoryEntry zeroFrame = null;
+
+    /** ֡processID */
+    private static final int SHARED = -2;
+
+    /** forkɶ̹дʱƵ֡processID */
+    private static final int COW = -3;
+
+    /** Ƿֻsection֡ */
+    private boolean shareText;
+
+    /** ֻҳҳ棬textKeyΪ */
+    private LongHashMap<MemoryEntry> textCache = new LongHashMap<MemoryEntry>();
+
+    /** ִļıţCoff.getIdentity()Ϊ */
+    private HashMap<String, Integer> executableIDs = new HashMap<String, Integer>();
+
+    /** ֡ʱѵȴߵ */
+    private Condition textLoaded;
+
+    /** ֡ڵˮλʱѻػ̵߳ */
+    private Condition pageoutNeeded;
+
+    /** ڵĳȣʱڼ */
+    private int workingSetWindow;
+
+    /** Ƿȱҳϡʱչ֮֡ */
+    private boolean pageFaultFrequency;
+
+    /** жϵͳȱҳʱ䴰 */
+    private int thrashingFaults, thrashingWindow;
+
+    /** thrashingFaultsȱҳʱ䣬ѭʹãԼ¼ȱҳ */
+    private long[] faultTimes;
+    private int numFaultTimes = 0;
 
-        private Integer vpn, pid;
+    /** ϵͳǷÿȱҳʱ */
+    private boolean thrashing = false;
+
+    /** һι̵ʱ䣬ûйʱΪ-1 */
+    private long lastSuspend = -1;
+
+    /** ڵȹḶ̌˳ */
+    private LinkedList<Integer> suspended = new LinkedList<Integer>();
+
+    /** ʱյ֡ */
+    private MemoryEntry[] idleFrames;
+
+    /** ̵ĹȱҳƵʣԽ̺Ϊ */
+    private HashMap<Integer, WorkingSet> workingSets = new HashMap<Integer, WorkingSet>();
+
+    /** ڻҳpageKeyΪ */
+    private LongHashMap<MemoryEntry> pagingOut = new LongHashMap<MemoryEntry>();
+
+    /** ȴҳɵ */
+    private Condition pageoutDone;
+
+    /**
+     * ̺źҳźϳһlongΪұļ32λΪpid32λΪvpn
+     */
+    static long pageKey(int vpn, int pid) {
+        return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
     }
 
     /** ڷҳеҳ*/
@@ -312,16 +1553,80 @@ public class VMKernel extends UserKernel {
         TranslationEntry translationEntry;
 
         int processID = -1;
-        //ʾҳûɵĲ޸ģԷڴݲӦ
-        boolean fixed = false;
+        //ҳûɵĲ޸ģԷڴݲӦ
+        //֡ͬʱ̶̹Լ¼̶Ĵ
+        int fixes = 0;
+        //֡ڿ֡
+        boolean free = false;
+        //֡ԭҳڱʱΪҳpageKeyΪ-1
+        long pageOutKey = -1;
+        //ҳԤģһδʹ
+        boolean prefetched = false;
+        //֡ڿ֡Уѱ߳
+        boolean zeroed = false;
+        //ֻҳҳеļǹ֡ʱΪ-1
+        long textKey = -1;
+        //֡ڴӿִļ
+        boolean loading = false;
+        //ӳ乲֡ĸҳpageKey
+        long[] mappers = new long[0];
+        int numMappers = 0;
+        //дʱƵ֡ԭǷд
+        boolean writable = false;
+        //ӳļҳڵļҳΪnullԼҳļеλúֽ
+        OpenFile file = null;
+        int filePosition, fileLength;
+        //֡һαʣװ룩ʱ
+        long lastUse = 0;
+
+        void addMapper(long key) {
+            if (numMappers == mappers.length)
+                mappers = Arrays.copyOf(mappers, Math.max(4, numMappers * 2));
+            mappers[numMappers++] = key;
+        }
+
+        void removeMapper(long key) {
+            for (int i = 0; i < numMappers; i++)
+                if (mappers[i] == key) {
+                    mappers[i] = mappers[--numMappers];
+                    return;
+                }
+        }
+
+        boolean isMappedBy(int pid) {
+            for (int i = 0; i < numMappers; i++)
+                if ((int) (mappers[i] >>> 32) == pid)
+                    return true;
+            return false;
+        }
 
+        /** ҳǷֻдʱƵ֡нֻԭȨ¼ */
+        boolean isReadOnly() {
+            return (processID == COW) ? !writable : translationEntry.readOnly;
+        }
 
         @Override
         public String toString() {
-            return "memoryentry processid:"+processID+" fixed:"+fixed+" translationEntry:"+translationEntry+" ";
+            return "memoryentry processid:"+processID+" fixes:"+fixes+" translationEntry:"+translationEntry+" ";
         }
     }
 
+    /** һ̵Ĺƺȱҳͳ */
+    private static class WorkingSet {
+        //ϴȱҳʱ̵ʱ
+        long lastFault = 0;
+        //ȱҳĻƽ
+        long faultInterval = 0;
+        int numFaults = 0;
+        //ϴȱҳʱȫʱ
+        long lastFaultTime = 0;
+        //ϴβʱƵĹҳ
+        int size = 0;
+        //βǷչ֮֡Լյ֡
+        boolean trim = false;
+        int released = 0;
+    }
+
     /**
      * swap file
      */
@@ -329,73 +1634,322 @@ public class VMKernel extends UserKernel {
         return fileSystem.open("swapfile", true);
     }
 
+    /**
+     * swap fileλλͼ䣺ÿ̵ҳĴУ
+     * ҳڲλʹԤдؿԺϲΪһļʡ
+     *
+     * swap file֮ǰһѹ棺ҳѹȱڴУ
+     * 泬VMKernel.swapCacheSizeֽڣ0ʾʹãʱLRU
+     * дswap fileȫҳֻǣ
+     */
     private class Swap {
         Swap() {
             swapFile = openSwapFile();
+            writeDone = new Condition(swapLock);
+            cacheCapacity = Config.getInteger("VMKernel.swapCacheSize", 0);
         }
 
         /**
-         * ֡дswap file
+         * һ֡ݡswapûб޸ĵҳҪ棻
+         * дswap fileʱλҳһд
          */
-        void swapOut(MemoryEntry me) {
-            System.out.println("֡starting");
-            if (me.translationEntry.valid) {
-                //ҳЧ
-                SwapEntry swapEntry = null;
-                TableKey tk = new TableKey(me.translationEntry.vpn, me.processID);
-                //ȡswap file
-                swapLock.acquire();
-                if (me.translationEntry.dirty || !swapTable.containsKey(tk)) {
-                    // Ҫ֡дswap file
-                    if (freeList.size() > 0) {
-                        //пλ
-                        swapEntry = freeList.removeFirst();
-                        swapEntry.readOnly = me.translationEntry.readOnly;
-                    }
-                    else {
-                        //޿λãҪswap fileдµswap 
-                        swapEntry = new SwapEntry(maxTableEntry++, me.translationEntry.readOnly);
-                    }
-
-                    swapTable.put(tk, swapEntry);
+        void swapOut(MemoryEntry[] pages, int count) {
+            PendingWrites writes = new PendingWrites();
+
+            //ȡswap file
+            swapLock.acquire();
+            for (int i = 0; i < count; i++) {
+                MemoryEntry me = pages[i];
+                if (!me.translationEntry.valid)
+                    continue;
+
+                //ҳЧдʱƵ֡ΪÿӳĽ̸һ
+                if (me.processID == COW) {
+                    for (int j = 0; j < me.numMappers; j++)
+                        swapOutPage(me, me.mappers[j], writes);
+                } else {
+                    swapOutPage(me, pageKey(me.translationEntry.vpn, me.processID), writes);
                 }
+            }
+
+            //ѹ泬δʹõҳдswap file
+            while (cacheBytes > cacheCapacity) {
+                Iterator<Map.Entry<Long, SwapEntry>> it = cache.entrySet().iterator();
+                Map.Entry<Long, SwapEntry> eldest = it.next();
+                it.remove();
+
+                SwapEntry swapEntry = eldest.getValue();
+                byte[] data = decompress(swapEntry.compressed);
+                cacheBytes -= swapEntry.compressed.length;
+                swapEntry.compressed = null;
+                writeToFile(eldest.getKey(), swapEntry, data, writes);
+                Machine.stats().numSwapCacheSpills++;
+            }
+
+            //дǰЩλܱȡ
+            for (int i = 0; i < writes.size; i++)
+                setBit(writing, writes.slots[i], true);
+            swapLock.release();
+
+            for (int i = 0; i < writes.size; ) {
+                //ҳλҳ
+                int run = 1;
+                while (i + run < writes.size && writes.slots[i + run] == writes.slots[i] + run)
+                    run++;
+
+                if (Trace.enabled(dbgVM))
+                    Trace.trace(dbgVM, "swap out %d pages to swap page %d", run, writes.slots[i]);
+                byte[] buf = new byte[run * Processor.pageSize];
+                for (int j = 0; j < run; j++)
+                    System.arraycopy(writes.data[i + j], 0, buf, j * Processor.pageSize, Processor.pageSize);
+                Lib.assertTrue(swapFile.write(writes.slots[i] * Processor.pageSize,
+                        buf, 0, buf.length) == buf.length);
+                i += run;
+            }
+
+            if (writes.size > 0) {
+                swapLock.acquire();
+                for (int i = 0; i < writes.size; i++)
+                    setBit(writing, writes.slots[i], false);
+                writeDone.wakeAll();
                 swapLock.release();
+            }
+        }
+
+        /**
+         * ֡ΪpageKeyΪkeyҳswapûб޸ĵҳҪ
+         */
+        private void swapOutPage(MemoryEntry me, long key, PendingWrites writes) {
+            SwapEntry swapEntry = swapTable.get(key);
+            if (swapEntry == null) {
+                swapEntry = new SwapEntry(-1, me.isReadOnly());
+                swapTable.put(key, swapEntry);
+            }
+            else if (!me.translationEntry.dirty) {
+                //swapеȻЧ
+                return;
+            }
+            swapEntry.readOnly = me.isReadOnly();
+            Machine.stats().numDirtyEvictions++;
+
+            byte[] data = new byte[Processor.pageSize];
+            Machine.processor().readMemory(me.translationEntry.ppn * Processor.pageSize,
+                    data, 0, Processor.pageSize);
+            store(key, swapEntry, data, writes);
+        }
+
+        /**
+         * ҳݣȫҳֻǣѹҳѹ棬
+         * дswap file
+         */
+        private void store(long key, SwapEntry swapEntry, byte[] data, PendingWrites writes) {
+            //
+            uncache(key, swapEntry);
+            swapEntry.zero = false;
+
+            if (isZero(data)) {
+                swapEntry.zero = true;
+                Machine.stats().numZeroPageStores++;
+                return;
+            }
 
-                if (swapEntry != null) {
-                    //Ҫдswap file
-                    Lib.debug(dbgVM,"swap out from physical page num:"+me.translationEntry.ppn+" into swap page num:"+swapEntry.swapPageNumber);
-                    Lib.assertTrue(swapFile.write(swapEntry.swapPageNumber * Processor.pageSize,
-                            Machine.processor().getMemory(),
-                            me.translationEntry.ppn * Processor.pageSize,
-                            Processor.pageSize) == Processor.pageSize);
+            if (cacheCapacity > 0) {
+                byte[] compressed = compress(data);
+                if (compressed != null) {
+                    swapEntry.compressed = compressed;
+                    cache.put(key, swapEntry);
+                    cacheBytes += compressed.length;
+                    Machine.stats().numSwapCacheStores++;
+                    if (Trace.enabled(dbgVM))
+                        Trace.trace(dbgVM, "swap cache: vpn %d pid %d in %d bytes",
+                                (int) key, (int) (key >>> 32), compressed.length);
+                    return;
                 }
             }
-            System.out.println("֡finised");
+
+            writeToFile(key, swapEntry, data, writes);
+        }
+
+        private void writeToFile(long key, SwapEntry swapEntry, byte[] data, PendingWrites writes) {
+            //ҳĲλǾݣһλ
+            if (swapEntry.swapPageNumber >= 0 && sharedSlots.containsKey(swapEntry.swapPageNumber)) {
+                releaseSlot(swapEntry.swapPageNumber);
+                swapEntry.swapPageNumber = -1;
+            }
+            if (swapEntry.swapPageNumber == -1)
+                swapEntry.swapPageNumber = allocateSlot((int) key, (int) (key >>> 32));
+            writes.add(swapEntry.swapPageNumber, data);
+        }
+
+        /** ѹɾҳ */
+        private void uncache(long key, SwapEntry swapEntry) {
+            if (swapEntry.compressed != null) {
+                cache.remove(key);
+                cacheBytes -= swapEntry.compressed.length;
+                swapEntry.compressed = null;
+            }
+        }
+
+        private boolean isZero(byte[] data) {
+            for (byte b : data)
+                if (b != 0)
+                    return false;
+            return true;
+        }
+
+        /**
+         * ѹһҳѹ󲻵ԭ3/4ʱѹ򷵻null
+         */
+        private byte[] compress(byte[] data) {
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            int length = deflater.deflate(compressBuffer);
+            if (!deflater.finished() || length > Processor.pageSize * 3 / 4)
+                return null;
+            return Arrays.copyOf(compressBuffer, length);
+        }
+
+        private byte[] decompress(byte[] compressed) {
+            byte[] data = new byte[Processor.pageSize];
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                Lib.assertTrue(inflater.inflate(data) == data.length);
+            }
+            catch (DataFormatException e) {
+                Lib.assertNotReached("corrupt page in swap cache");
+            }
+            return data;
+        }
+
+        /**
+         * Ϊ̵ҳλȽҳĲλ֮󣨻֮ǰ
+         * ڸý̵ĴУΪýȡһµĿմ
+         */
+        private int allocateSlot(int vpn, int pid) {
+            SwapEntry neighbour;
+            if ((neighbour = swapTable.get(pageKey(vpn - 1, pid))) != null
+                    && neighbour.swapPageNumber >= 0
+                    && !getBit(used, neighbour.swapPageNumber + 1))
+                return takeSlot(neighbour.swapPageNumber + 1);
+            if ((neighbour = swapTable.get(pageKey(vpn + 1, pid))) != null
+                    && neighbour.swapPageNumber > 0
+                    && !getBit(used, neighbour.swapPageNumber - 1))
+                return takeSlot(neighbour.swapPageNumber - 1);
+
+            //ڸý̵Ĵҿвλ
+            Integer cluster = clusters.get(pid);
+            if (cluster != null) {
+                long free = ~clusterBits(cluster) & clusterMask;
+                if (free != 0)
+                    return takeSlot(cluster * clusterSize + Long.numberOfTrailingZeros(free));
+            }
+
+            //ȡһȫеĴ
+            int c = 0;
+            while (clusterBits(c) != 0)
+                c++;
+            clusters.put(pid, c);
+            return takeSlot(c * clusterSize);
+        }
+
+        /** cռλ */
+        private long clusterBits(int c) {
+            int word = c * clusterSize / 64;
+            if (word >= used.length)
+                return 0;
+            return (used[word] >>> (c * clusterSize % 64)) & clusterMask;
+        }
+
+        private int takeSlot(int slot) {
+            setBit(used, slot, true);
+            return slot;
         }
 
-        private int maxTableEntry = 0;
+        private boolean getBit(long[] bits, int n) {
+            return n / 64 < bits.length && (bits[n / 64] & (1L << (n % 64))) != 0;
+        }
+
+        private void setBit(long[] bits, int n, boolean value) {
+            if (n / 64 >= bits.length) {
+                //λͼλͼһӱ
+                boolean isUsed = (bits == used);
+                int length = Math.max(bits.length * 2, n / 64 + 1);
+                used = Arrays.copyOf(used, length);
+                writing = Arrays.copyOf(writing, length);
+                bits = isUsed ? used : writing;
+            }
+            if (value)
+                bits[n / 64] |= 1L << (n % 64);
+            else
+                bits[n / 64] &= ~(1L << (n % 64));
+        }
 
         /**
-         * swap file жȡҳ֡
+         * ȡ̵countҳӦ֡СѹлΪȫҳ
+         * Ҫswap fileswap fileҳһζ
          */
-        void swapIn(int vpn, int pid, int ppn) {
-            System.out.println("֡starting");
+        void swapIn(int pid, int[] vpns, int[] ppns, int count) {
+            SwapEntry[] swapEntries = new SwapEntry[count];
             swapLock.acquire();
-            SwapEntry swapEntry = swapTable.get(new TableKey(vpn, pid));
+            for (int i = 0; i < count; i++) {
+                long key = pageKey(vpns[i], pid);
+                SwapEntry swapEntry = swapTable.get(key);
+                if (swapEntry == null)
+                    continue;
+
+                int paddr = ppns[i] * Processor.pageSize;
+                if (swapEntry.zero) {
+                    Machine.processor().fillMemory(paddr, Processor.pageSize, (byte) 0);
+                }
+                else if (swapEntry.compressed != null) {
+                    //ѹеҳʹΪʹõ
+                    cache.get(key);
+                    Machine.processor().writeMemory(paddr,
+                            decompress(swapEntry.compressed), 0, Processor.pageSize);
+                }
+                else {
+                    swapEntries[i] = swapEntry;
+                    continue;
+                }
+                Machine.stats().numSwapCacheHits++;
+                invertedTable[ppns[i]].translationEntry.readOnly = swapEntry.readOnly;
+            }
+            //ȴЩλڽед
+            for (int i = 0; i < count; i++)
+                while (swapEntries[i] != null && getBit(writing, swapEntries[i].swapPageNumber))
+                    writeDone.sleep();
             //swap fileиϢ
             swapLock.release();
 
-            if (swapEntry != null) {
-                // ҳswap file 
-                Lib.debug(dbgVM,"swap in from swap page num:"+swapEntry.swapPageNumber+" into physical page num:"+ppn);
-                Lib.assertTrue(swapFile.read(swapEntry.swapPageNumber * Processor.pageSize,
-                        Machine.processor().getMemory(),
-                        ppn * Processor.pageSize,
-                        Processor.pageSize) == Processor.pageSize);
+            for (int i = 0; i < count; ) {
+                if (swapEntries[i] == null) {
+                    i++;
+                    continue;
+                }
+
+                // ҳswap file Уҳҳ
+                int first = swapEntries[i].swapPageNumber;
+                int run = 1;
+                while (i + run < count && swapEntries[i + run] != null
+                        && swapEntries[i + run].swapPageNumber == first + run)
+                    run++;
+
+                if (Trace.enabled(dbgVM))
+                    Trace.trace(dbgVM, "swap in %d swap pages from %d to ppn %d",
+                            run, first, ppns[i]);
+                byte[] buf = new byte[run * Processor.pageSize];
+                Lib.assertTrue(swapFile.read(first * Processor.pageSize,
+                        buf, 0, buf.length) == buf.length);
                 //swap fileеҳڴ
-                invertedTable[ppn].translationEntry.readOnly = swapEntry.readOnly;
+                for (int j = i; j < i + run; j++) {
+                    Machine.processor().writeMemory(ppns[j] * Processor.pageSize,
+                            buf, (j - i) * Processor.pageSize, Processor.pageSize);
+                    invertedTable[ppns[j]].translationEntry.readOnly = swapEntries[j].readOnly;
+                }
+                i += run;
             }
-            System.out.println("֡finished");
         }
 
         /**
@@ -403,23 +1957,68 @@ public class VMKernel extends UserKernel {
          */
         boolean pageInSwap(int vpn, int pid) {
             swapLock.acquire();
-            boolean retBool = swapTable.containsKey(new TableKey(vpn, pid));
+            boolean retBool = swapTable.containsKey(pageKey(vpn, pid));
             swapLock.release();
             return retBool;
         }
 
         /**
-         * swap fileеҳfreelistԱswap֡û
+         * ͷŸýswap fileеĲλԱҳʹ
          */
         void freePages(int maxVPN, int pid) {
             swapLock.acquire();
             SwapEntry freeEntry;
             for (int i = 0; i < maxVPN; i++)
-                if ((freeEntry = swapTable.get(new TableKey(i, pid))) != null)
-                    freeList.add(freeEntry);
+                if ((freeEntry = swapTable.remove(pageKey(i, pid))) != null) {
+                    uncache(pageKey(i, pid), freeEntry);
+                    if (freeEntry.swapPageNumber >= 0)
+                        releaseSlot(freeEntry.swapPageNumber);
+                }
+            clusters.remove(pid);
+            swapLock.release();
+        }
+
+        /**
+         * forkʱƸ̵swap¼ӽ̡swap fileеĲλƣ̹
+         * ѹеҳͬһѹݡʱڴҸûڻҳ
+         */
+        void fork(int parentPid, int childPid, int maxVPN) {
+            swapLock.acquire();
+            for (int i = 0; i < maxVPN; i++) {
+                SwapEntry parentEntry = swapTable.get(pageKey(i, parentPid));
+                if (parentEntry == null)
+                    continue;
+
+                long key = pageKey(i, childPid);
+                SwapEntry childEntry = new SwapEntry(parentEntry.swapPageNumber, parentEntry.readOnly);
+                childEntry.zero = parentEntry.zero;
+                if (parentEntry.compressed != null) {
+                    childEntry.compressed = parentEntry.compressed;
+                    cache.put(key, childEntry);
+                    cacheBytes += childEntry.compressed.length;
+                }
+                if (childEntry.swapPageNumber >= 0) {
+                    Integer shares = sharedSlots.get(childEntry.swapPageNumber);
+                    sharedSlots.put(childEntry.swapPageNumber, (shares == null) ? 1 : shares + 1);
+                }
+                swapTable.put(key, childEntry);
+            }
             swapLock.release();
         }
 
+        /**
+         * һҳʹøòλûҳʱͷ
+         */
+        private void releaseSlot(int slot) {
+            Integer shares = sharedSlots.get(slot);
+            if (shares == null)
+                setBit(used, slot, false);
+            else if (shares == 1)
+                sharedSlots.remove(slot);
+            else
+                sharedSlots.put(slot, shares - 1);
+        }
+
         /**
          * رղɾswap file
          */
@@ -434,8 +2033,35 @@ public class VMKernel extends UserKernel {
                 swapPageNumber = spn;
                 readOnly = ro;
             }
+            //swap fileеĲλûзʱΪ-1
             int swapPageNumber;
             boolean readOnly;
+            //ҳȫΪ
+            boolean zero = false;
+            //ѹʱΪѹ
+            byte[] compressed = null;
+        }
+
+        /** Ҫдswap fileҳλ */
+        private class PendingWrites {
+            void add(int slot, byte[] page) {
+                if (size == slots.length) {
+                    slots = Arrays.copyOf(slots, size * 2);
+                    data = Arrays.copyOf(data, size * 2);
+                }
+
+                int i = size++;
+                for (; i > 0 && slots[i - 1] > slot; i--) {
+                    slots[i] = slots[i - 1];
+                    data[i] = data[i - 1];
+                }
+                slots[i] = slot;
+                data[i] = page;
+            }
+
+            int[] slots = new int[4];
+            byte[][] data = new byte[4][];
+            int size = 0;
         }
 
         /**
@@ -443,14 +2069,41 @@ public class VMKernel extends UserKernel {
          */
         private OpenFile swapFile;
 
-        /** swap fileеҳ */
-        private LinkedList<SwapEntry> freeList = new LinkedList<SwapEntry>();
+        /** λռλͼ */
+        private long[] used = new long[1];
+
+        /** дĲλλͼ */
+        private long[] writing = new long[1];
+
+        /** صĲλΪ64Լ */
+        private static final int clusterSize = 16;
+        private static final long clusterMask = (1L << clusterSize) - 1;
+
+        /** ÿ̵ǰĴغ */
+        private HashMap<Integer, Integer> clusters = new HashMap<Integer, Integer>();
+
+        /** forkĶҳĲλԼһҳ֮⹲ҳ */
+        private HashMap<Integer, Integer> sharedSlots = new HashMap<Integer, Integer>();
 
         /** ҳӳ swap fileеļ¼ */
-        private HashMap<TableKey, SwapEntry> swapTable = new HashMap<TableKey, SwapEntry>();
+        private LongHashMap<SwapEntry> swapTable = new LongHashMap<SwapEntry>();
+
+        /** ѹ棬˳Уδʹõǰ */
+        private LinkedHashMap<Long, SwapEntry> cache = new LinkedHashMap<Long, SwapEntry>(16, 0.75f, true);
+
+        /** ѹʹõֽ */
+        private int cacheCapacity;
+        private int cacheBytes = 0;
+
+        private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private Inflater inflater = new Inflater();
+        private byte[] compressBuffer = new byte[Processor.pageSize * 2];
 
         /** ڲٿswap */
         private Lock swapLock = new Lock();
+
+        /** ȴλдɵ */
+        private Condition writeDone;
     }
 
     private Swap swap;
@@ -1,9 +1,9 @@
 package nachos.vm;
 
 import java.lang.reflect.Constructor;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
-import java.util.Random;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -28,44 +28,72 @@ public class VMProcess extends UserProcess {
     }
 
     /**
-     * лʱTLBˢ²ԷTLB
+     * TLBASIDǣлʱˢTLBֻۼƽеû̬ʱ
      */
     @Override
     public void saveState() {
-        kernel.propagateAndFlushTLB(true);
+        userTime += Machine.stats().userTicks - runStart;
     }
 
-
+    /**
+     * лý̵ĵַռ
+     */
     @Override
-    public void restoreState() {}
+    public void restoreState() {
+        runStart = Machine.stats().userTicks;
+        kernel.activateASID(processID);
+    }
+
+    /**
+     * ̵ʱ䣬еû̬ʱȱҳƵʰʱ㣬
+     * ȴеʱ䲻
+     */
+    private long virtualTime() {
+        return userTime + Machine.stats().userTicks - runStart;
+    }
+
+    /**
+     * ̹ĹƴСҳkernelڲ
+     */
+    public int getWorkingSetSize() {
+        return kernel.getWorkingSetSize(processID);
+    }
+
+    /**
+     * ̵ȱҳƵʣÿ1000û̬ʱڵȱҳڵȱҳȨؽϴ
+     */
+    public double getPageFaultRate() {
+        return kernel.getPageFaultRate(processID);
+    }
 
     /**
      * Coff Section¼Ҫصҳţʵlazy load
      */
     @Override
     protected boolean loadSections() {
-        //¼Coff sectionַ
+        lazyLoad = new Constructor[numPages];
+
+        //¼Coff sectionַÿsectionһ
         int topVPN = 0;
+        int executable = kernel.getExecutableID(coff.getIdentity());
         for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
             CoffSection section = coff.getSection(sectionNumber);
 
-            CoffConstructor constructor;
-
             //sectionҳŶӦ
-            topVPN += section.getLength();
-            for (int i = section.getFirstVPN(); i < topVPN; i++) {
-                constructor = new CoffConstructor(section, i);
-                Lib.debug(dbgProcess, "load coff section into vm "+i);
-                lazyLoadSection.put(i, constructor);
-            }
+            topVPN = section.getFirstVPN() + section.getLength();
+            //ֻsectionҳͬһִļĽ̼乲
+            boolean shared = kernel.isTextShared() && section.isReadOnly();
+            long textKey = shared ? VMKernel.textKey(executable, sectionNumber, 0) : -1;
+            if (Trace.enabled(dbgProcess))
+                Trace.trace(dbgProcess, "load coff section into vm %d-%d",
+                        section.getFirstVPN(), topVPN - 1);
+            Arrays.fill(lazyLoad, section.getFirstVPN(), topVPN, new CoffConstructor(section, textKey));
         }
 
         //Ϊ̵ջҳ
-        for (; topVPN < numPages - 1; topVPN++)
-        {
-            Lib.debug(dbgProcess, "load stack page into vm "+topVPN);
-            lazyLoadSection.put(topVPN, new StackConstructor(topVPN));
-        }
+        if (Trace.enabled(dbgProcess))
+            Trace.trace(dbgProcess, "load stack pages into vm %d-%d", topVPN, numPages - 2);
+        Arrays.fill(lazyLoad, topVPN, numPages - 1, new StackConstructor());
 
 
         return true;
@@ -73,6 +101,7 @@ public class VMProcess extends UserProcess {
 
     @Override
     protected void unloadSections() {
+        kernel.releaseASID(processID);
         kernel.freePages(processID, numPages);
     }
 
@@ -80,16 +109,208 @@ public class VMProcess extends UserProcess {
     public void loadArguments(String[] args,byte[][] argv) {
         int entryOffset = (numPages-1)*pageSize;
         int stringOffset = entryOffset + args.length*4;
-        if(args.length!=0) {
-            for (int i=0;i<args.length;i++){
-                System.out.print("ARGS:"+args[i]);
+        //ҳأargcargvҪãinitRegistersmain
+        this.argc = args.length;
+        this.argv = entryOffset;
+        if (Trace.enabled(dbgProcess))
+            Trace.trace(dbgProcess, "load argument page into vm %d, args %s",
+                    numPages - 1, Arrays.toString(args));
+        lazyLoad[numPages - 1] = new ArgConstructor(entryOffset, stringOffset, argv);
+    }
+
+    /**
+     * forkӽ̵ĳʼĴǸ̵forkʱļĴ
+     */
+    @Override
+    public void initRegisters() {
+        if (forkRegisters == null) {
+            super.initRegisters();
+            return;
+        }
+
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            Machine.processor().writeRegister(i, forkRegisters[i]);
+        forkRegisters = null;
+    }
+
+    protected static final int
+            syscallMmap = 10,
+            syscallFork = 13,
+            syscallMunmap = 14;
+
+    /**
+     * UserProcessϵͳ֮⴦
+     * <tt>int mmap(int fd, char *address);</tt>
+     * <tt>int fork();</tt>
+     * <tt>int munmap(char *address);</tt>
+     * ӳеļreadwriteرļ˳ʱӳ
+     */
+    @Override
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+        switch (syscall) {
+            case syscallMmap:
+                return handleMmap(a0, a1);
+            case syscallFork:
+                return handleFork();
+            case syscallMunmap:
+                return handleMunmap(a0);
+            case syscallRead:
+            case syscallWrite:
+                if (findMapping(a0) != null)
+                    return -1;
+                break;
+            case syscallClose:
+                if (findMapping(a0) != null)
+                    unmap(findMapping(a0));
+                break;
+            case syscallExit:
+                while (!mappings.isEmpty())
+                    unmap(mappings.getFirst());
+                break;
+        }
+        return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+
+    /**
+     * 򿪵ļfileDescriptorӳ䵽addressʼַaddress밴ҳ룬
+     * ӳ䲻ӳӳصӳҳڵһηʱļ룬
+     * ޸ĵҳڻӳʱдļļĳȣʱ-1
+     */
+    private int handleMmap(int fileDescriptor, int address) {
+        if (fileDescriptor < 0 || fileDescriptor >= openFiles.length
+                || openFiles[fileDescriptor] == null || findMapping(fileDescriptor) != null
+                || address < 0 || Processor.offsetFromAddress(address) != 0)
+            return -1;
+
+        OpenFile file = openFiles[fileDescriptor];
+        int length = file.length();
+        if (length < 0)
+            return -1;
+
+        int firstVPN = Processor.pageFromAddress(address);
+        int count = Lib.divRoundUp(length, pageSize);
+        if (firstVPN < numPages)
+            return -1;
+        for (Mapping m : mappings)
+            if (firstVPN < m.firstVPN + m.numPages && m.firstVPN < firstVPN + count)
+                return -1;
+
+        //ӳҳlazyLoadnumPagesҲ䣬mappings
+        mappings.add(new Mapping(fileDescriptor, file, firstVPN, count, length));
+
+        if (Trace.enabled(dbgProcess))
+            Trace.trace(dbgProcess, "mmap %s at vpn %d, %d pages",
+                    file.getName(), firstVPN, count);
+        return length;
+    }
+
+    /**
+     * addressʼļӳ䣬޸ĵҳдļ
+     */
+    private int handleMunmap(int address) {
+        for (Mapping m : mappings)
+            if (address >= 0 && Processor.offsetFromAddress(address) == 0
+                    && Processor.pageFromAddress(address) == m.firstVPN) {
+                unmap(m);
+                return 0;
             }
+        return -1;
+    }
+
+    private void unmap(Mapping mapping) {
+        kernel.unmapFilePages(processID, mapping.firstVPN, mapping.numPages);
+        mappings.remove(mapping);
+    }
+
+    /**
+     * ӳļfileDescriptorӳ䣬ûʱΪnull
+     */
+    private Mapping findMapping(int fileDescriptor) {
+        for (Mapping m : mappings)
+            if (m.fileDescriptor == fileDescriptor)
+                return m;
+        return null;
+    }
+
+    /**
+     * ҳvpnӳ䣬ûʱΪnull
+     */
+    private Mapping findMappedPage(int vpn) {
+        for (Mapping m : mappings)
+            if (vpn >= m.firstVPN && vpn < m.firstVPN + m.numPages)
+                return m;
+        return null;
+    }
+
+    /**
+     * ӳ֮ĵַֻļӳвЧ
+     */
+    @Override
+    protected boolean validAddress(int vaddr) {
+        int vpn = Processor.pageFromAddress(vaddr);
+        return vpn < numPages || findMappedPage(vpn) != null;
+    }
+
+    /**
+     * ҳvpnĹӳеҳlazyLoadӳҳӳĹ
+     */
+    private Constructor constructorOf(int vpn) {
+        if (vpn < numPages)
+            return lazyLoad[vpn];
+        Mapping mapping = findMappedPage(vpn);
+        return (mapping == null) ? null : mapping.constructor;
+    }
+
+    /**
+     * 뵱ǰͬӽַ̡ռдʱƣڴеҳ̹
+     * һдʱŸƣδصҳ乹ļӳ䲻̳С򿪵ļӽ´򿪣
+     * ļλ֮ͬԶӽ̴fork0̵õӽ̵Ľ̺
+     */
+    private int handleFork() {
+        VMProcess child = (VMProcess) newUserProcess();
+        child.coff = coff;
+        child.numPages = numPages;
+        //ÿֻһΣӽͬһεҳԹһ
+        IdentityHashMap<Constructor, Constructor> copies = new IdentityHashMap<Constructor, Constructor>();
+        child.lazyLoad = new Constructor[lazyLoad.length];
+        for (int vpn = 0; vpn < lazyLoad.length; vpn++) {
+            Constructor constructor = lazyLoad[vpn];
+            if (constructor == null)
+                continue;
+            if (!copies.containsKey(constructor))
+                copies.put(constructor, constructor.duplicate(child));
+            child.lazyLoad[vpn] = copies.get(constructor);
         }
-        else {
-            System.out.print("args is null");
+
+        for (int i = 2; i < openFiles.length; i++) {
+            OpenFile file = openFiles[i];
+            if (file == null || !FileRef.referenceFile(file.getName()))
+                continue;
+            OpenFile copy = ThreadedKernel.fileSystem.open(file.getName(), false);
+            if (copy == null) {
+                FileRef.unreferenceFile(file.getName());
+                continue;
+            }
+            copy.seek(file.tell());
+            child.openFiles[i] = copy;
         }
-        Lib.debug(dbgProcess, "load argument page into vm "+(numPages-1));
-        lazyLoadSection.put(numPages - 1, new ArgConstructor(entryOffset, stringOffset, argv));
+
+        kernel.forkPages(processID, child.processID, numPages);
+
+        //ӽ̴syscallָ֮ʼִУֵΪ0
+        Processor processor = Machine.processor();
+        child.forkRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            child.forkRegisters[i] = processor.readRegister(i);
+        child.forkRegisters[Processor.regV0] = 0;
+        child.forkRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+        child.forkRegisters[Processor.regNextPC] = processor.readRegister(Processor.regNextPC) + 4;
+
+        if (Trace.enabled(dbgProcess))
+            Trace.trace(dbgProcess, "fork pid %d from pid %d", child.processID, processID);
+        addChild(child.processID);
+        child.startThread(KThread.currentThread().getName());
+        return child.processID;
     }
 
     /**
@@ -101,8 +322,12 @@ public class VMProcess extends UserProcess {
         Processor processor = Machine.processor();
         switch (cause) {
             case Processor.exceptionTLBMiss:
-//                System.out.println("TLBmissing Handling");
-                handleTLBMiss(processor.readRegister(processor.regBadVAddr));
+                handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+                break;
+            case Processor.exceptionReadOnly:
+                int vaddr = processor.readRegister(Processor.regBadVAddr);
+                if (!handleZeroPageWrite(vaddr) && !handleCopyOnWrite(vaddr))
+                    super.handleException(cause);
                 break;
             default:
                 super.handleException(cause);
@@ -114,64 +339,73 @@ public class VMProcess extends UserProcess {
      * TLBȱʧ쳣
      */
     public void handleTLBMiss(int vaddr) {
-        Lib.debug(dbgTLB, "TLB miss due to bad address :"+vaddr);
-//        System.out.println("TLB");
+        if (Trace.enabled(dbgTLB))
+            Trace.trace(dbgTLB, "TLB miss at vaddr 0x%08x", vaddr);
         if (!validAddress(vaddr)) {
-            System.out.println("TLB invalid");
+            Trace.trace(dbgTLB, "TLB miss at invalid vaddr");
             //Чַ
         } else {
 
-            //ҳ
-            TranslationEntry retrievedTE = retrievePage(Processor.pageFromAddress(vaddr));
-            //ǷѾдtlbıʶ
-            boolean unwritten = true;
-            Processor p = Machine.processor();
-//            System.out.println("p.TLBSize"+p.getTLBSize());
-            for (int i = 0; i < p.getTLBSize() && unwritten; i++) {
-                //TLBTLB״̬
-                //vpn-ppn<
-                TranslationEntry tlbTranslationEntry = p.readTLBEntry(i);
-                //
-                //ͬ֡ʱ
-//                System.out.println("tlbTranslation"+tlbTranslationEntry);
-//                System.out.println("retrievedTE"+retrievedTE);
-
-                if (tlbTranslationEntry.ppn == retrievedTE.ppn) {
-                    if (unwritten) {
-                        //д
-                        p.writeTLBEntry(i, retrievedTE);
-                        unwritten = false;
-                    } else if (tlbTranslationEntry.valid) {
-                        //Ѿдˣ򽫸Ч
-                        tlbTranslationEntry.valid = false;
-                        p.writeTLBEntry(i, tlbTranslationEntry);
-                    }
-                } else if (unwritten && !tlbTranslationEntry.valid) {
-                    //Чûдд
-                    p.writeTLBEntry(i, retrievedTE);
-                    unwritten = false;
-                }
-            }
-
-            //еTLBãûдµĵطҪ滻һ
-            if (unwritten) {
-//                System.out.println("TLB2");
-                int randomIndex = generator.nextInt(p.getTLBSize());
-                TranslationEntry oldEntry = p.readTLBEntry(randomIndex);
-
-                //TLBдҳ
-                if (oldEntry.dirty || oldEntry.used)
-                    kernel.propagateEntry(oldEntry.ppn, oldEntry.used, oldEntry.dirty);
+            //δдȫҳӳ乲ҳ
+            int vpn = Processor.pageFromAddress(vaddr);
+            Constructor constructor = constructorOf(vpn);
+            if (constructor != null && constructor.zeroFill() && kernel.mapZeroPage(vpn))
+                return;
 
-                p.writeTLBEntry(randomIndex, retrievedTE);
-            }
+            //ҳ
+            TranslationEntry retrievedTE = retrievePage(vpn);
+            kernel.fillTLB(retrievedTE);
 
             //ȡ̶֡
             kernel.unfix(retrievedTE.ppn);
+
+            //ڴеҳҲװTLB
+            kernel.mapAround(retrievedTE.vpn, processID);
+
+            //ϵͳʱڵȾǷý
+            if (kernel.isThrashing())
+                kernel.suspendIfThrashing(processID);
         }
     }
 
-    public Random generator = new Random();
+    /**
+     * ԹҳдΪҳ˽еȫ֡TLBдִָС
+     * дҳֻ쳣false
+     */
+    private boolean handleZeroPageWrite(int vaddr) {
+        if (!validAddress(vaddr))
+            return false;
+
+        int vpn = Processor.pageFromAddress(vaddr);
+        Constructor constructor = constructorOf(vpn);
+        if (constructor == null || !constructor.zeroFill())
+            return false;
+
+        if (Trace.enabled(dbgTLB))
+            Trace.trace(dbgTLB, "write to zero page at vaddr 0x%08x", vaddr);
+        Machine.stats().numZeroPageCopies++;
+
+        TranslationEntry te = retrievePage(vpn);
+        kernel.fillTLB(te);
+        kernel.unfix(te.ppn);
+        return true;
+    }
+
+    /**
+     * forkдʱҳдƵ˽֡TLBдִָС
+     * ҳȷʵֻʱfalse
+     */
+    private boolean handleCopyOnWrite(int vaddr) {
+        if (!validAddress(vaddr))
+            return false;
+
+        TranslationEntry te = kernel.copyOnWrite(retrievePage(Processor.pageFromAddress(vaddr)), processID);
+        boolean writable = !te.readOnly;
+        if (writable)
+            kernel.fillTLB(te);
+        kernel.unfix(te.ppn);
+        return writable;
+    }
 
     /**
      * õҳŶӦҳ
@@ -179,40 +413,54 @@ public class VMProcess extends UserProcess {
     public TranslationEntry retrievePage(int vpn) {
         TranslationEntry returnEntry = null;
 
+        //ҳӳļҳغԱȿǷѾӳ
+        Constructor constructor = constructorOf(vpn);
+        if (constructor != null && constructor.retained())
+            returnEntry = kernel.fixIfExists(vpn, processID);
+
         //δؽڴ棬lazy load
-        if (lazyLoadSection.containsKey(vpn))
+        if (returnEntry == null && constructor != null)
         {
-            Lib.debug(dbgProcess, "lazy load virtual page num:" +vpn + " into physical memory ");
-            returnEntry = lazyLoadSection.get(vpn).execute();
+            if (Trace.enabled(dbgProcess))
+                Trace.trace(dbgProcess, "lazy load vpn %d", vpn);
+            Machine.stats().numPageFaults++;
+            kernel.recordPageFault(processID, virtualTime());
+            returnEntry = constructor.execute(vpn, updateReadahead(vpn));
+            //TLBпܻиҳӳ䵽ҳ
+            if (constructor.zeroFill())
+                kernel.unmapZeroPage(vpn);
         }
-        else if ((returnEntry = kernel.fixIfExists(vpn, processID)) == null)//ڴû
+        else if (returnEntry == null && (returnEntry = kernel.fixIfExists(vpn, processID)) == null)//ڴû
         {
-            Lib.debug(dbgProcess, "page fault due to losing virtual page num:"+vpn);
+            if (Trace.enabled(dbgProcess))
+                Trace.trace(dbgProcess, "page fault on vpn %d", vpn);
             //ҳ
-            returnEntry = kernel.pageFault(vpn, processID);
+            Machine.stats().numPageFaults++;
+            kernel.recordPageFault(processID, virtualTime());
+            returnEntry = kernel.pageFault(vpn, processID, updateReadahead(vpn));
         }
 
         Lib.assertTrue(returnEntry != null);
         return returnEntry;
     }
 
+    /**
+     * ȱҳǷ˳ԤڣϴȱҳԤҳ֮
+     * ȱҳʹڼӱȱҳرԤ
+     */
+    private int updateReadahead(int vpn) {
+        if (vpn > lastFaultVPN && vpn <= lastFaultVPN + readahead + 1)
+            readahead = Math.min(Math.max(1, readahead * 2), kernel.maxReadahead);
+        else
+            readahead = 0;
+
+        lastFaultVPN = vpn;
+        return readahead;
+    }
+
     @Override
     public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-        int bytesRead = 0;
-        LinkedList<VMMemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.READ, true);
-        //ڴб
-        if (memoryAccesses != null) {
-            int temp;
-            for (VMMemoryAccess vma : memoryAccesses) {
-                temp = vma.executeAccess();
-                if (temp == 0)
-                    break;
-                else
-                    bytesRead += temp;
-            }
-        }
-
-        return bytesRead;
+        return transfer(vaddr, data, offset, length, AccessType.READ, true);
     }
 
     @Override
@@ -221,50 +469,59 @@ public class VMProcess extends UserProcess {
     }
 
     public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean unfix) {
-        int bytesWritten = 0;
-        LinkedList<VMMemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.WRITE, unfix);
-        //ڴб
-        if (memoryAccesses != null) {
-            int temp;
-            for (VMMemoryAccess vma : memoryAccesses) {
-                temp = vma.executeAccess();
-                //ִڴʲ
-                if (temp == 0)
-                    break;
-                else
-                    bytesWritten += temp;
-            }
-        }
-
-        return bytesWritten;
+        return transfer(vaddr, data, offset, length, AccessType.WRITE, unfix);
     }
 
     public int writeVirtualMemory(int vaddr, byte[] data, boolean unfix) {
         return VMProcess.this.writeVirtualMemory(vaddr, data, 0, data.length, unfix);
     }
 
-    public LinkedList<VMMemoryAccess> createMemoryAccesses(int vaddr, byte[] data, int offset, int length, AccessType accessType, boolean unfix) {
+    /**
+     * ҳڴ֮䴫ݣκζÿҳͨڴõ̶
+     * ֡дʱƵҳȸƵ˽֡unfixΪfalseʱЩ֡Ա̶
+     * ʿЧַĩβдҳʱֹͣ
+     */
+    private int transfer(int vaddr, byte[] data, int offset, int length, AccessType accessType, boolean unfix) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-        LinkedList<VMMemoryAccess> returnList  = null;
 
-        if (validAddress(vaddr)) {
-            //Чַ
-            returnList = new LinkedList<VMMemoryAccess>();
+        int transferred = 0;
+        while (transferred < length && validAddress(vaddr + transferred)) {
+            TranslationEntry te = retrievePage(Processor.pageFromAddress(vaddr + transferred));
+            if (accessType == AccessType.WRITE)
+                te = kernel.copyOnWrite(te, processID);
 
-            while (length > 0) {
-                int vpn = Processor.pageFromAddress(vaddr);
+            int amount = transferPage(te, vaddr + transferred, data,
+                    offset + transferred, length - transferred, accessType);
+            if (unfix)
+                kernel.unfix(te.ppn);
+            if (amount == 0)
+                break;
+            transferred += amount;
+        }
 
-                int potentialPageAccess = Processor.pageSize - Processor.offsetFromAddress(vaddr);
-                int accessSize = length < potentialPageAccess ? length : potentialPageAccess;
+        return transferred;
+    }
 
-                returnList.add(new VMMemoryAccess(accessType, data, vpn, offset, Processor.offsetFromAddress(vaddr), accessSize, unfix));
-                length -= accessSize;
-                vaddr += accessSize;
-                offset += accessSize;
+    /**
+     * ļдֱӷûҳڵ֡ͨڴõ̶֡ддʱ
+     * ҳȸƵ˽֡unpinPageȡ̶
+     */
+    @Override
+    protected TranslationEntry pinPage(int vpn, AccessType accessType) {
+        TranslationEntry te = retrievePage(vpn);
+        if (accessType == AccessType.WRITE) {
+            te = kernel.copyOnWrite(te, processID);
+            if (te.readOnly) {
+                kernel.unfix(te.ppn);
+                return null;
             }
         }
+        return te;
+    }
 
-        return returnList;
+    @Override
+    protected void unpinPage(TranslationEntry te) {
+        kernel.unfix(te.ppn);
     }
 
     public static final int pageSize = Processor.pageSize;
@@ -274,89 +531,282 @@ public class VMProcess extends UserProcess {
 
     public static VMKernel kernel = null;
 
-    //ʼcoff section
-    public HashMap<Integer, Constructor> lazyLoadSection = new HashMap<Integer,Constructor>();
+    /**
+     * ӳÿҳĹҳΪ±ꡣδصҳָڶΣsectionջ
+     * ҳĹͬһεҳһѼصҳΪnull
+     * ڴлswapkernel¼ļӳҳconstructorOf
+     */
+    public Constructor[] lazyLoad = new Constructor[0];
 
-    public class VMMemoryAccess extends UserProcess.MemoryAccess {
-        //ڴʳΪһ࣬
-        VMMemoryAccess(AccessType at, byte[] d, int _vpn, int dStart, int pStart, int len, boolean _unfix) {
-            super(at,d,_vpn,dStart,pStart,len);
-            unfix = _unfix;
-        }
+    /** еû̬ʱ䣬Լοʼʱû̬ʱ */
+    private long userTime = 0, runStart = 0;
 
-        @Override
-        public int executeAccess() {
-            //ͨڴ淽ʽҶӦ
-            translationEntry = retrievePage(vpn);
-            //ִзʲ
-            int bytesAccessed = super.executeAccess();
+    /** һȱҳҳţжȱҳǷ˳ */
+    private int lastFaultVPN = -2;
 
-            if (unfix)
-                kernel.unfix(translationEntry.ppn);
+    /** ǰԤڣȱҳʱԤҳ */
+    private int readahead = 0;
+
+    /** forkõӽ̿ʼʱļĴΪnull */
+    private int[] forkRegisters = null;
 
-            return bytesAccessed;
+    /** ̵ļӳ */
+    private LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+
+    /** һļӳ䣺򿪵ļӳ䵽firstVPNʼnumPagesҳ */
+    public class Mapping {
+        Mapping(int fd, OpenFile f, int vpn, int pages, int len) {
+            fileDescriptor = fd; file = f; firstVPN = vpn; numPages = pages; length = len;
+            constructor = new MmapConstructor(this);
         }
 
-        /** ʾִڴд󣬸ڴܷ֡޸ */
-        public boolean unfix;
+        public int fileDescriptor;
+        public OpenFile file;
+        public int firstVPN, numPages;
+        /** ļֽ */
+        public int length;
+        /** ӳҳõĹ */
+        public MmapConstructor constructor;
+    }
+
+    /**
+     * ҳvpnѾأlazyLoadɾĹconstructor
+     */
+    private void unload(int vpn, Constructor constructor) {
+        Lib.assertTrue(lazyLoad[vpn] == constructor);
+        lazyLoad[vpn] = null;
     }
 
     /**
      * ҳ
      * ʵlazy load
-     * ֲͬҳͣ
+     * ֲͬҳͣÿһҳ
      * 1.Coff section װ.text.data.bsssection
      * 2.stack page
      * 3.argument page
+     * 4.ļӳҳ
      */
     public abstract class Constructor {
-        abstract TranslationEntry execute();
+        /**
+         * ҳvpnԤreadaheadҳ
+         */
+        abstract TranslationEntry execute(int vpn, int readahead);
+
+        /**
+         * forkʱΪӽprocessƸùЩҳӽ̼̳ʱnull
+         */
+        abstract Constructor duplicate(VMProcess process);
+
+        /**
+         * ҳʼȫΪ㣬ڵһд֮ǰӳ乲ҳ
+         */
+        boolean zeroFill() {
+            return false;
+        }
+
+        /**
+         * ҳͬһִļ̹
+         */
+        boolean shared() {
+            return false;
+        }
+
+        /**
+         * ҳ󲻽swapҪ¹죬ԼغԱ
+         */
+        boolean retained() {
+            return shared();
+        }
     }
     //coff lazy load
     public class CoffConstructor extends Constructor {
-        CoffConstructor(CoffSection ce, int vpn1) {
+        CoffConstructor(CoffSection ce, long textKey1) {
             coffSection = ce;
-            vpn = vpn1;
+            textKey = textKey1;
         }
 
+        /**
+         * lazy loadҳfault-aroundԼreadaheadҳͬһsection
+         * δصҳҲһԤҳһӿִļһζ
+         */
         @Override
-        TranslationEntry execute() {
-            System.out.println("lazy load section");
-            //lazy load ҳ
-            int pageNumber = vpn - coffSection.getFirstVPN();
-            //lazyLoadSectionɾҳʾҳѾ
-            Lib.assertTrue(lazyLoadSection.remove(vpn) != null);
-            //õҳ
-            TranslationEntry returnEntry = kernel.requestFreePage(vpn, processID);
+        TranslationEntry execute(int vpn, int readahead) {
+            int firstVPN = coffSection.getFirstVPN();
+            int endVPN = firstVPN + coffSection.getLength();
+
+            //lazyLoadɾҳʾҳѾ
+            if (!shared())
+                unload(vpn, this);
+
+            //δʼsectionȫΪ㣬ضִļҲԤҳ
+            if (zeroFill()) {
+                TranslationEntry te = kernel.requestZeroPage(vpn, processID);
+                te.readOnly = coffSection.isReadOnly();
+                return te;
+            }
+
+            //õҳҳ̶ʱֱӷ
+            TranslationEntry returnEntry;
+            if (shared()) {
+                returnEntry = kernel.requestTextPage(textKey(vpn), vpn, processID);
+                if (!kernel.isTextLoading(returnEntry.ppn))
+                    return returnEntry;
+            } else {
+                returnEntry = kernel.requestFreePage(vpn, processID);
+            }
+
+            //ҪһҳķΧ[low, high)
+            int base = Math.max(firstVPN, kernel.faultAroundStart(vpn));
+            int limit = Math.min(endVPN, Math.max(kernel.faultAroundEnd(vpn), vpn + readahead + 1));
+            TranslationEntry[] entries = new TranslationEntry[limit - base];
+            entries[vpn - base] = returnEntry;
+
+            //ֻԤδصҳò֡ʱֹͣ
+            int low = vpn, high = vpn + 1;
+            while (low > base && prefetch(low - 1, entries, base))
+                low--;
+            while (high < limit && prefetch(high, entries, base))
+                high++;
+
             //loadʼ
-            coffSection.loadPage(pageNumber, returnEntry.ppn);
-            returnEntry.readOnly = coffSection.isReadOnly() ? true : false;
+            int[] ppns = new int[high - low];
+            for (int i = 0; i < ppns.length; i++)
+                ppns[i] = entries[low - base + i].ppn;
+            coffSection.loadPages(low - firstVPN, ppns, ppns.length);
+
+            for (int i = low; i < high; i++) {
+                entries[i - base].readOnly = coffSection.isReadOnly();
+                if (shared())
+                    kernel.textLoaded(entries[i - base].ppn);
+                if (i != vpn)
+                    kernel.unfix(entries[i - base].ppn);
+            }
 
             return returnEntry;
         }
 
+        @Override
+        Constructor duplicate(VMProcess process) {
+            return process.new CoffConstructor(coffSection, textKey);
+        }
+
+        @Override
+        boolean zeroFill() {
+            return !coffSection.isInitialzed();
+        }
+
+        @Override
+        boolean shared() {
+            return textKey != -1;
+        }
+
+        /**
+         * ΪԤҳvõ֡entries[v - base]
+         */
+        private boolean prefetch(int v, TranslationEntry[] entries, int base) {
+            if (lazyLoad[v] != this)
+                return false;
+            if (shared())
+                return (entries[v - base] = kernel.requestTextPrefetch(textKey(v), v, processID)) != null;
+            if ((entries[v - base] = kernel.requestPrefetchPage(v, processID)) == null)
+                return false;
+            lazyLoad[v] = null;
+            return true;
+        }
+
+        /** ҳvҳеļ */
+        private long textKey(int v) {
+            return textKey + (v - coffSection.getFirstVPN());
+        }
+
         public CoffSection coffSection;
-        public int vpn;
+        /** sectionһҳҳеļʱΪ-1 */
+        public long textKey;
     }
 
     //stack lazy load 
     public class StackConstructor extends Constructor {
-        StackConstructor(int vpn1) {
-            vpn = vpn1;
+        StackConstructor() {
         }
 
         @Override
-        TranslationEntry execute() {
-            System.out.println("lazy loadջ");
-            Lib.assertTrue(lazyLoadSection.remove(vpn) != null);
+        TranslationEntry execute(int vpn, int readahead) {
+            unload(vpn, this);
 
-            TranslationEntry te = kernel.requestFreePage(vpn, processID);
+            TranslationEntry te = kernel.requestZeroPage(vpn, processID);
             te.readOnly = false;
             return te;
         }
 
-        public int vpn;
+        @Override
+        Constructor duplicate(VMProcess process) {
+            return process.new StackConstructor();
+        }
+
+        @Override
+        boolean zeroFill() {
+            return true;
+        }
+    }
+    //ļӳ lazy load 
+    public class MmapConstructor extends Constructor {
+        MmapConstructor(Mapping mapping1) {
+            mapping = mapping1;
+        }
+
+        /**
+         * ļҳԤӳreadaheadҳҳһһζ
+         */
+        @Override
+        TranslationEntry execute(int vpn, int readahead) {
+            int end = Math.min(mapping.firstVPN + mapping.numPages, vpn + readahead + 1);
+            TranslationEntry[] entries = new TranslationEntry[end - vpn];
+            entries[0] = kernel.requestFilePage(vpn, processID, mapping.file,
+                    position(vpn), pageLength(vpn), false);
+
+            //ֻԤδڴеҳò֡ʱֹͣ
+            int count = 1;
+            while (vpn + count < end && (entries[count] = kernel.requestFilePage(vpn + count,
+                    processID, mapping.file, position(vpn + count), pageLength(vpn + count), true)) != null)
+                count++;
+
+            //ļĩβ֮ĲΪ
+            byte[] buf = new byte[count * pageSize];
+            mapping.file.read(position(vpn), buf, 0,
+                    Math.min(buf.length, mapping.length - position(vpn)));
+            for (int i = 0; i < count; i++) {
+                Machine.processor().writeMemory(Processor.makeAddress(entries[i].ppn, 0),
+                        buf, i * pageSize, pageSize);
+                if (i > 0)
+                    kernel.unfix(entries[i].ppn);
+            }
+
+            return entries[0];
+        }
+
+        /** ҳvļеλ */
+        private int position(int v) {
+            return (v - mapping.firstVPN) * pageSize;
+        }
+
+        /** ҳvļֽ */
+        private int pageLength(int v) {
+            return Math.min(pageSize, mapping.length - position(v));
+        }
+
+        @Override
+        boolean retained() {
+            return true;
+        }
+
+        @Override
+        Constructor duplicate(VMProcess process) {
+            return null;
+        }
+
+        public Mapping mapping;
     }
+
     //argument lazy load д֡
     public class ArgConstructor extends Constructor {
         ArgConstructor(int _entryOffset, int _stringOffset, byte[][] _argv) {
@@ -364,28 +814,38 @@ public class VMProcess extends UserProcess {
         }
 
         @Override
-        TranslationEntry execute() {
-            System.out.println("lazy load");
-            Lib.assertTrue(lazyLoadSection.remove(numPages - 1) != null);
-
-            TranslationEntry te = kernel.requestFreePage(numPages - 1, processID);
+        TranslationEntry execute(int vpn, int readahead) {
+            unload(vpn, this);
 
+            TranslationEntry te = kernel.requestZeroPage(vpn, processID);
 
+            //֡ѱrequestZeroPage̶ֱдڴ棻֡㣬ַβ0д
+            Processor processor = Machine.processor();
+            int entryAddress = entryOffset, stringAddress = stringOffset;
             for (int i = 0; i < argv.length; i++) {
-                byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-                Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes, false) == 4);
-                entryOffset += 4;
-                Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i], false) == argv[i].length);
-                stringOffset += argv[i].length;
-                Lib.assertTrue(writeVirtualMemory(stringOffset, new byte[] { 0 }, false) == 1);
-                stringOffset += 1;
+                processor.writeMemory(physicalAddress(te, entryAddress), Lib.bytesFromInt(stringAddress), 0, 4);
+                entryAddress += 4;
+                processor.writeMemory(physicalAddress(te, stringAddress), argv[i], 0, argv[i].length);
+                stringAddress += argv[i].length + 1;
             }
 
+            te.dirty = true;
+            te.used = true;
             te.readOnly = true;
 
             return te;
         }
 
+        @Override
+        Constructor duplicate(VMProcess process) {
+            return process.new ArgConstructor(entryOffset, stringOffset, argv);
+        }
+
+        /** ҳеַvaddr֡teеַ */
+        private int physicalAddress(TranslationEntry te, int vaddr) {
+            return Processor.makeAddress(te.ppn, Processor.offsetFromAddress(vaddr));
+        }
+
         public int entryOffset, stringOffset;
         public byte[][] argv;
     }
@@ -0,0 +1,86 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Each frame remembers when it was last seen in use.
+ * The hand sweeps the frames, clearing used bits and stamping the frames it
+ * finds in use. A frame whose page has not been used for longer than the
+ * working-set window (<tt>VMKernel.workingSetWindow</tt> ticks) is outside
+ * its process's working set. The first clean such frame is chosen; dirty
+ * ones are passed over, because evicting them means a synchronous swap
+ * write. If a full sweep finds no clean old frame, the first dirty old frame
+ * is chosen, and failing that the frame that has gone unused the longest.
+ */
+public class WSClockReplacement extends PageReplacement {
+    /**
+     * Allocate a new WSClock replacement policy.
+     */
+    public WSClockReplacement() {
+        window = Config.getInteger("VMKernel.workingSetWindow", 5000);
+    }
+
+    @Override
+    public void initialize(VMKernel kernel) {
+        super.initialize(kernel);
+        lastUse = new long[kernel.getNumFrames()];
+    }
+
+    @Override
+    public int findVictim() {
+        int numFrames = kernel.getNumFrames();
+        long now = Machine.timer().getTime();
+
+        int dirtyOld = -1;
+        int oldest = -1;
+
+        for (int n = 0; n < numFrames; n++) {
+            hand = (hand + 1) % numFrames;
+
+            if (kernel.isFrameFixed(hand))
+                continue;
+
+            if (kernel.isFrameFree(hand))
+                return hand;
+
+            TranslationEntry te = kernel.getFrameEntry(hand);
+            if (te.used) {
+                te.used = false;
+                lastUse[hand] = now;
+                continue;
+            }
+
+            if (now - lastUse[hand] > window) {
+                if (!te.dirty)
+                    return hand;
+                if (dirtyOld == -1)
+                    dirtyOld = hand;
+            }
+
+            if (oldest == -1 || lastUse[hand] < lastUse[oldest])
+                oldest = hand;
+        }
+
+        if (dirtyOld != -1)
+            return (hand = dirtyOld);
+        if (oldest != -1)
+            return (hand = oldest);
+
+        // every unfixed frame was in use: take the next one
+        do {
+            hand = (hand + 1) % numFrames;
+        } while (kernel.isFrameFixed(hand));
+        return hand;
+    }
+
+    @Override
+    public void pageLoaded(int ppn, int vpn, int pid) {
+        lastUse[ppn] = Machine.timer().getTime();
+    }
+
+    /** The working-set window, in ticks. */
+    private long window;
+    /** When each frame was last seen in use. */
+    private long[] lastUse;
+    private int hand = 0;
+}